@@ -0,0 +1,70 @@
+package pl.edu.icm.heap.kite;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scoring a sample: counting shingles common with each virus and ranking the viruses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CrosscheckBenchmark {
+    @Param({"31"})
+    private String shingleLength;
+
+    @Param({"10", "200"})
+    private int virusCount;
+
+    @Param({"0.01", "0.1", "0.9"})
+    private double hitRatio;
+
+    private VirusesDatabase virusesDatabase;
+    private BitSet shingles;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        String[] genomes = SyntheticData.genomes(virusCount, 8_000, 1);
+        virusesDatabase = new VirusesDatabase(Utils.parseShinglesLength(shingleLength));
+        virusesDatabase.loadFromInputStream(new ByteArrayInputStream(SyntheticData.fasta(genomes)));
+
+        Random random = new Random(2);
+        shingles = new BitSet(virusesDatabase.shinglesCount());
+        for (int id = 0; id < virusesDatabase.shinglesCount(); ++id) {
+            if (random.nextDouble() < hitRatio) {
+                shingles.set(id);
+            }
+        }
+    }
+
+    @Benchmark
+    public int[] countCommonShingles() {
+        return virusesDatabase.countCommonShingles(shingles);
+    }
+
+    @Benchmark
+    public VirusesDatabase.CrosscheckResult crosscheck() {
+        PriorityQueue<VirusesDatabase.CrosscheckResult> resultsPQ = virusesDatabase.crosscheck(shingles);
+        return resultsPQ.poll();
+    }
+}
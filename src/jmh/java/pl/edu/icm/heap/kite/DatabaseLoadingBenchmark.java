@@ -0,0 +1,78 @@
+package pl.edu.icm.heap.kite;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the database from FASTA: sequentially from a stream and in parallel from a file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DatabaseLoadingBenchmark {
+    @Param({"31", "25,31"})
+    private String shingleLength;
+
+    @Param({"10", "200"})
+    private int virusCount;
+
+    @Param({"4"})
+    private int threadPoolSize;
+
+    private int[] shinglesLength;
+    private byte[] fasta;
+    private Path fastaPath;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        shinglesLength = Utils.parseShinglesLength(shingleLength);
+        fasta = SyntheticData.fasta(SyntheticData.genomes(virusCount, 8_000, 1));
+        fastaPath = Files.createTempFile("kite-benchmark", ".fasta");
+        Files.write(fastaPath, fasta);
+        executor = Executors.newFixedThreadPool(threadPoolSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        executor.shutdown();
+        Files.deleteIfExists(fastaPath);
+    }
+
+    @Benchmark
+    public VirusesDatabase loadFromInputStream() throws IOException {
+        VirusesDatabase virusesDatabase = new VirusesDatabase(shinglesLength);
+        virusesDatabase.loadFromInputStream(new ByteArrayInputStream(fasta));
+        return virusesDatabase;
+    }
+
+    @Benchmark
+    public VirusesDatabase loadFromFiles() throws IOException {
+        VirusesDatabase virusesDatabase = new VirusesDatabase(shinglesLength);
+        virusesDatabase.loadFromFiles(List.of(fastaPath), executor, threadPoolSize);
+        return virusesDatabase;
+    }
+}
@@ -0,0 +1,73 @@
+package pl.edu.icm.heap.kite;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Inflating of FASTQ file: sequential gzip vs. parallel BGZF.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DecompressionBenchmark {
+    @Param({"GZIP", "BGZF"})
+    private FastqFormat format;
+
+    @Param({"100000"})
+    private int readCount;
+
+    @Param({"4"})
+    private int threadPoolSize;
+
+    private byte[] compressed;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        String[] genomes = SyntheticData.genomes(20, 8_000, 1);
+        byte[] fastq = SyntheticData.fastq(genomes, readCount, 150, 0.1, 2);
+        compressed = format == FastqFormat.BGZF ? SyntheticData.bgzf(fastq) : SyntheticData.gzip(fastq);
+        executor = Executors.newFixedThreadPool(threadPoolSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public long inflate() throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        try (InputStream input = format == FastqFormat.BGZF
+                ? new BgzfInputStream(new ByteArrayInputStream(compressed), executor, threadPoolSize * 2)
+                : new GZIPInputStream(new ByteArrayInputStream(compressed), 512 * 1024)) {
+            for (int read = input.read(buffer); read >= 0; read = input.read(buffer)) {
+                total += read;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,64 @@
+package pl.edu.icm.heap.kite;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding k-mers of all configured lengths from sequence lines, without looking them up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class KmerExtractionBenchmark {
+    @Param({"21", "31", "25,31", "63"})
+    private String shingleLength;
+
+    @Param({"100000"})
+    private int readCount;
+
+    private ByteBuffer fastq;
+    private int[] sequenceRanges;
+    private KmerScanner scanner;
+    private long checksum;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        String[] genomes = SyntheticData.genomes(20, 8_000, 1);
+        fastq = ByteBuffer.wrap(SyntheticData.fastq(genomes, readCount, 150, 0.1, 2));
+        List<Integer> ranges = new ArrayList<>();
+        FastqParser.forEachSequence(fastq, 0, fastq.limit(), (sequence, from, to) -> {
+            ranges.add(from);
+            ranges.add(to);
+        });
+        sequenceRanges = ranges.stream().mapToInt(Integer::intValue).toArray();
+        scanner = new KmerScanner(Utils.parseShinglesLength(shingleLength));
+    }
+
+    @Benchmark
+    public long scan() {
+        checksum = 0;
+        for (int i = 0; i < sequenceRanges.length; i += 2) {
+            scanner.reset();
+            scanner.scan(fastq, sequenceRanges[i], sequenceRanges[i + 1], (lengthIndex, kmer) -> checksum ^= kmer[0]);
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,90 @@
+package pl.edu.icm.heap.kite;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Looking up k-mers of reads in the database, for different database sizes and ratios of reads
+ * from the database genomes. The score is the time of a single lookup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LookupBenchmark {
+    static final int KMER_COUNT = 1 << 16;
+
+    @Param({"31", "25,31"})
+    private String shingleLength;
+
+    @Param({"10", "200"})
+    private int virusCount;
+
+    @Param({"0.0", "0.1", "0.9"})
+    private double hitRatio;
+
+    @Param({"0", "12"})
+    private int prefilterBits;
+
+    private VirusesDatabase virusesDatabase;
+    private int[] lengthIndexes;
+    private long[][] kmers;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        int[] shinglesLength = Utils.parseShinglesLength(shingleLength);
+        String[] genomes = SyntheticData.genomes(virusCount, 8_000, 1);
+        virusesDatabase = new VirusesDatabase(shinglesLength);
+        virusesDatabase.loadFromInputStream(new ByteArrayInputStream(SyntheticData.fasta(genomes)));
+        if (prefilterBits > 0) {
+            virusesDatabase.buildPrefilters(prefilterBits);
+        }
+
+        ByteBuffer fastq = ByteBuffer.wrap(SyntheticData.fastq(genomes, KMER_COUNT, 150, hitRatio, 2));
+        lengthIndexes = new int[KMER_COUNT];
+        kmers = new long[KMER_COUNT][];
+        KmerScanner scanner = new KmerScanner(shinglesLength);
+        int[] count = new int[1];
+        FastqParser.forEachSequence(fastq, 0, fastq.limit(), (sequence, from, to) -> {
+            if (count[0] < KMER_COUNT) {
+                scanner.reset();
+                scanner.scan(sequence, from, to, (lengthIndex, kmer) -> {
+                    if (count[0] < KMER_COUNT) {
+                        lengthIndexes[count[0]] = lengthIndex;
+                        kmers[count[0]++] = kmer.clone();
+                    }
+                });
+            }
+        });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KMER_COUNT)
+    public int getShingleId() {
+        int found = 0;
+        for (int i = 0; i < KMER_COUNT; ++i) {
+            if (virusesDatabase.getShingleId(lengthIndexes[i], kmers[i]) >= 0) {
+                ++found;
+            }
+        }
+        return found;
+    }
+}
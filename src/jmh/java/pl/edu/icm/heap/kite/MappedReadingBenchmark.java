@@ -0,0 +1,87 @@
+package pl.edu.icm.heap.kite;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading uncompressed FASTQ file: memory-mapped (in windows of {@code mappedWindowMb}) and through the input stream.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MappedReadingBenchmark {
+    @Param({"true", "false"})
+    private boolean mapped;
+
+    @Param({"1", "256"})
+    private int mappedWindowMb;
+
+    @Param({"100000"})
+    private int readCount;
+
+    @Param({"4"})
+    private int threadPoolSize;
+
+    private Path fastqPath;
+    private ExecutorService executor;
+    private ShinglesReader shinglesReader;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        String[] genomes = SyntheticData.genomes(50, 8_000, 1);
+        VirusesDatabase virusesDatabase = new VirusesDatabase(Utils.parseShinglesLength("31"));
+        virusesDatabase.loadFromInputStream(new ByteArrayInputStream(SyntheticData.fasta(genomes)));
+        executor = Executors.newFixedThreadPool(threadPoolSize);
+        shinglesReader = new ShinglesReader(virusesDatabase, executor, threadPoolSize, 64 * 1024);
+        shinglesReader.setMappedWindow(mappedWindowMb * 1024L * 1024L, 64L * 1024 * 1024);
+
+        fastqPath = Files.createTempFile("kite-benchmark", ".fq");
+        Files.write(fastqPath, SyntheticData.fastq(genomes, readCount, 150, 0.1, 2));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        executor.shutdown();
+        Files.deleteIfExists(fastqPath);
+    }
+
+    @Benchmark
+    public int readShingles() throws IOException, ExecutionException, InterruptedException {
+        FileMetrics metrics = new FileMetrics(0, fastqPath.toString());
+        try (FileChannel channel = FileChannel.open(fastqPath)) {
+            if (mapped) {
+                return shinglesReader.readShingles(channel, 0, channel.size(), false, null, metrics).cardinality();
+            }
+            try (InputStream input = new BufferedInputStream(Channels.newInputStream(channel), 512 * 1024)) {
+                return shinglesReader.readShingles(input, false, () -> Long.MAX_VALUE, null, metrics).cardinality();
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package pl.edu.icm.heap.kite;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding sequence lines of FASTQ records in inflated bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParsingBenchmark {
+    @Param({"100000"})
+    private int readCount;
+
+    @Param({"75", "150"})
+    private int readLength;
+
+    private ByteBuffer fastq;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        String[] genomes = SyntheticData.genomes(20, 8_000, 1);
+        fastq = ByteBuffer.wrap(SyntheticData.fastq(genomes, readCount, readLength, 0.1, 2));
+    }
+
+    @Benchmark
+    public long forEachSequence() {
+        long[] bases = new long[1];
+        FastqParser.forEachSequence(fastq, 0, fastq.limit(), (sequence, from, to) -> bases[0] += to - from);
+        return bases[0];
+    }
+}
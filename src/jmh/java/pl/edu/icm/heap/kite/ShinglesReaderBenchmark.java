@@ -0,0 +1,89 @@
+package pl.edu.icm.heap.kite;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The whole per-file pipeline, as in processing a single file: inflating, parsing, k-mer extraction and lookup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ShinglesReaderBenchmark {
+    @Param({"PLAIN", "GZIP", "BGZF"})
+    private FastqFormat format;
+
+    @Param({"31", "25,31"})
+    private String shingleLength;
+
+    @Param({"0.1"})
+    private double hitRatio;
+
+    @Param({"100000"})
+    private int readCount;
+
+    @Param({"4"})
+    private int threadPoolSize;
+
+    private byte[] data;
+    private ExecutorService executor;
+    private ShinglesReader shinglesReader;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        String[] genomes = SyntheticData.genomes(50, 8_000, 1);
+        VirusesDatabase virusesDatabase = new VirusesDatabase(Utils.parseShinglesLength(shingleLength));
+        virusesDatabase.loadFromInputStream(new ByteArrayInputStream(SyntheticData.fasta(genomes)));
+
+        byte[] fastq = SyntheticData.fastq(genomes, readCount, 150, hitRatio, 2);
+        data = switch (format) {
+            case PLAIN -> fastq;
+            case GZIP -> SyntheticData.gzip(fastq);
+            case BGZF -> SyntheticData.bgzf(fastq);
+        };
+        executor = Executors.newFixedThreadPool(threadPoolSize);
+        shinglesReader = new ShinglesReader(virusesDatabase, executor, threadPoolSize, 64 * 1024);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public int readShingles() throws IOException, ExecutionException, InterruptedException {
+        InputStream input = new ByteArrayInputStream(data);
+        input = switch (format) {
+            case PLAIN -> input;
+            case GZIP -> new GZIPInputStream(input, 512 * 1024);
+            case BGZF -> new BgzfInputStream(input, executor, threadPoolSize * 2);
+        };
+        try (InputStream bufferedInput = new BufferedInputStream(input, 512 * 1024)) {
+            return shinglesReader.readShingles(bufferedInput).cardinality();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package pl.edu.icm.heap.kite;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Generator of synthetic benchmark data: random genomes (as FASTA) and reads (as FASTQ, in the style
+ * of {@code assets/generated.fq.gz}), where {@code hitRatio} of the reads are sampled from the genomes
+ * and the rest are random sequences.
+ */
+final class SyntheticData {
+    private static final byte[] BASES = {'A', 'C', 'G', 'T'};
+    private static final int FASTA_LINE_LENGTH = 70;
+    private static final int BGZF_BLOCK_INPUT_SIZE = 60_000;
+    private static final byte[] BGZF_EOF_BLOCK = {
+            31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0, 27, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    private SyntheticData() {
+    }
+
+    static String[] genomes(int count, int length, long seed) {
+        Random random = new Random(seed);
+        String[] genomes = new String[count];
+        for (int i = 0; i < count; ++i) {
+            genomes[i] = randomSequence(random, length);
+        }
+        return genomes;
+    }
+
+    static byte[] fasta(String[] genomes) {
+        StringBuilder fasta = new StringBuilder();
+        for (int i = 0; i < genomes.length; ++i) {
+            fasta.append(">V").append(i).append(" synthetic genome\n");
+            for (int from = 0; from < genomes[i].length(); from += FASTA_LINE_LENGTH) {
+                fasta.append(genomes[i], from, Math.min(from + FASTA_LINE_LENGTH, genomes[i].length())).append('\n');
+            }
+        }
+        return fasta.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static byte[] fastq(String[] genomes, int readCount, int readLength, double hitRatio, long seed) {
+        Random random = new Random(seed);
+        String quality = "I".repeat(readLength);
+        StringBuilder fastq = new StringBuilder(readCount * (2 * readLength + 16));
+        for (int i = 0; i < readCount; ++i) {
+            if (random.nextDouble() < hitRatio) {
+                int virusId = random.nextInt(genomes.length);
+                int from = random.nextInt(genomes[virusId].length() - readLength + 1);
+                fastq.append("@V").append(virusId).append("REF\n")
+                        .append(genomes[virusId], from, from + readLength).append('\n');
+            } else {
+                fastq.append("@RANDOM\n").append(randomSequence(random, readLength)).append('\n');
+            }
+            fastq.append("+\n").append(quality).append('\n');
+        }
+        return fastq.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 3);
+        try (GZIPOutputStream gzipOutput = new GZIPOutputStream(output)) {
+            gzipOutput.write(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Compresses data into BGZF blocks, as {@code bgzip} does, with the end-of-file marker block.
+     */
+    static byte[] bgzf(byte[] data) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 3);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        byte[] compressed = new byte[BGZF_BLOCK_INPUT_SIZE + 1024];
+        CRC32 crc = new CRC32();
+        for (int from = 0; from < data.length; from += BGZF_BLOCK_INPUT_SIZE) {
+            int length = Math.min(BGZF_BLOCK_INPUT_SIZE, data.length - from);
+            deflater.reset();
+            deflater.setInput(data, from, length);
+            deflater.finish();
+            int compressedLength = deflater.deflate(compressed);
+            crc.reset();
+            crc.update(data, from, length);
+
+            ByteBuffer block = ByteBuffer.allocate(18 + compressedLength + 8).order(ByteOrder.LITTLE_ENDIAN);
+            block.put(new byte[]{31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 'B', 'C', 2, 0})
+                    .putShort((short) (block.capacity() - 1))
+                    .put(compressed, 0, compressedLength)
+                    .putInt((int) crc.getValue())
+                    .putInt(length);
+            output.write(block.array(), 0, block.capacity());
+        }
+        deflater.end();
+        output.write(BGZF_EOF_BLOCK, 0, BGZF_EOF_BLOCK.length);
+        return output.toByteArray();
+    }
+
+    private static String randomSequence(Random random, int length) {
+        byte[] sequence = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            sequence[i] = BASES[random.nextInt(BASES.length)];
+        }
+        return new String(sequence, StandardCharsets.US_ASCII);
+    }
+}
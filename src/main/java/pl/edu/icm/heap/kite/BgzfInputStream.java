@@ -0,0 +1,270 @@
+package pl.edu.icm.heap.kite;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Input stream of BGZF (blocked gzip, as produced by {@code bgzip}) file, that inflates blocks in parallel.
+ * <p>
+ * Each BGZF block is a separate gzip member with its compressed size stored in the {@code BC} extra subfield,
+ * so blocks are read sequentially, inflated concurrently on the executor and returned in the original order.
+ * <p>
+ * When the stream is a part of a file split into chunks, {@link #inflatedLimit()} tells the offset of inflated data
+ * where the blocks of the next chunk start.
+ */
+public class BgzfInputStream extends InputStream {
+    static final int HEADER_LENGTH = 18;
+    private static final int FOOTER_LENGTH = 8;
+    private static final int MAX_BLOCK_SIZE = 1 << 16;
+
+    private final InputStream input;
+    private final ExecutorService executor;
+    private final int maxBlocksInFlight;
+    private final long compressedLimit;
+    private final Queue<Future<byte[]>> blocks;
+    private long compressedPosition;
+    private long inflatedPosition;
+    private long inflatedLimit;
+    private byte[] block;
+    private int blockPosition;
+    private boolean endOfInput;
+
+    public BgzfInputStream(InputStream input, ExecutorService executor, int maxBlocksInFlight) {
+        this(input, executor, maxBlocksInFlight, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param compressedLimit offset in the input of the first block that belongs to the next chunk
+     */
+    public BgzfInputStream(InputStream input, ExecutorService executor, int maxBlocksInFlight, long compressedLimit) {
+        this.input = input;
+        this.executor = executor;
+        this.maxBlocksInFlight = Math.max(1, maxBlocksInFlight);
+        this.compressedLimit = compressedLimit;
+        this.blocks = new ArrayDeque<>();
+        this.block = new byte[0];
+        this.inflatedLimit = Long.MAX_VALUE;
+    }
+
+    /**
+     * Checks if the header is a header of BGZF block: gzip member with {@code FEXTRA} flag
+     * and {@code BC} subfield as the only extra subfield.
+     */
+    public static boolean isBgzfHeader(byte[] header, int length) {
+        return isBgzfHeader(header, 0, length);
+    }
+
+    static boolean isBgzfHeader(byte[] bytes, int offset, int length) {
+        return length >= HEADER_LENGTH
+                && (bytes[offset] & 0xff) == 31 && (bytes[offset + 1] & 0xff) == 139
+                && bytes[offset + 2] == 8 && (bytes[offset + 3] & 4) != 0
+                && bytes[offset + 10] == 6 && bytes[offset + 11] == 0
+                && bytes[offset + 12] == 'B' && bytes[offset + 13] == 'C'
+                && bytes[offset + 14] == 2 && bytes[offset + 15] == 0;
+    }
+
+    /**
+     * @return total size of BGZF block (header, compressed data and footer)
+     */
+    static int blockSize(byte[] header) {
+        return blockSize(header, 0);
+    }
+
+    private static int blockSize(byte[] bytes, int offset) {
+        return ((bytes[offset + 16] & 0xff) | ((bytes[offset + 17] & 0xff) << 8)) + 1;
+    }
+
+    /**
+     * Finds the first block that starts at or after {@code from} offset of the file. Compressed data can look
+     * like a block header, so the header is accepted only if the next block header (or end of file) is right
+     * after the block.
+     *
+     * @return offset of the block, or size of the file if there is no block
+     */
+    static long nextBlockStart(FileChannel channel, long from) throws IOException {
+        long size = channel.size();
+        byte[] window = new byte[MAX_BLOCK_SIZE + HEADER_LENGTH];
+        byte[] nextHeader = new byte[HEADER_LENGTH];
+        long position = from;
+        while (position < size) {
+            int length = readFully(channel, position, window);
+            for (int i = 0; i + HEADER_LENGTH <= length; ++i) {
+                if (isBgzfHeader(window, i, length - i)) {
+                    long nextBlock = position + i + blockSize(window, i);
+                    if (nextBlock == size
+                            || nextBlock < size && isBgzfHeader(nextHeader, readFully(channel, nextBlock, nextHeader))) {
+                        return position + i;
+                    }
+                }
+            }
+            if (position + length >= size) {
+                break;
+            }
+            position += length - HEADER_LENGTH + 1;
+        }
+        return size;
+    }
+
+    private static int readFully(FileChannel channel, long position, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        return buffer.position();
+    }
+
+    /**
+     * @return offset in the inflated data where the block at {@code compressedLimit} starts,
+     * or {@link Long#MAX_VALUE} if the block was not reached yet
+     */
+    public long inflatedLimit() {
+        return inflatedLimit;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureBlock()) {
+            return -1;
+        }
+        return block[blockPosition++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureBlock()) {
+            return -1;
+        }
+        int count = Math.min(len, block.length - blockPosition);
+        System.arraycopy(block, blockPosition, b, off, count);
+        blockPosition += count;
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        blocks.forEach(f -> f.cancel(false));
+        blocks.clear();
+        input.close();
+    }
+
+    private boolean ensureBlock() throws IOException {
+        while (blockPosition == block.length) {
+            fillBlocksQueue();
+            Future<byte[]> nextBlock = blocks.poll();
+            if (nextBlock == null) {
+                return false;
+            }
+            try {
+                block = nextBlock.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException ioException) {
+                    throw ioException;
+                }
+                throw new IOException(e.getCause());
+            }
+            blockPosition = 0;
+        }
+        return true;
+    }
+
+    private void fillBlocksQueue() throws IOException {
+        while (!endOfInput && blocks.size() < maxBlocksInFlight) {
+            byte[] compressedBlock = readCompressedBlock();
+            if (compressedBlock == null) {
+                endOfInput = true;
+            } else {
+                blocks.add(executor.submit(() -> inflateBlock(compressedBlock)));
+            }
+        }
+    }
+
+    private byte[] readCompressedBlock() throws IOException {
+        if (inflatedLimit == Long.MAX_VALUE && compressedPosition >= compressedLimit) {
+            inflatedLimit = inflatedPosition;
+        }
+        byte[] header = new byte[HEADER_LENGTH];
+        int headerLength = input.readNBytes(header, 0, HEADER_LENGTH);
+        if (headerLength == 0) {
+            return null;
+        }
+        if (!isBgzfHeader(header, headerLength)) {
+            throw new ZipException("Not a BGZF block header");
+        }
+        int blockSize = blockSize(header);
+        if (blockSize < HEADER_LENGTH + FOOTER_LENGTH) {
+            throw new ZipException("Invalid BGZF block size: " + blockSize);
+        }
+
+        byte[] compressedBlock = new byte[blockSize];
+        System.arraycopy(header, 0, compressedBlock, 0, HEADER_LENGTH);
+        if (input.readNBytes(compressedBlock, HEADER_LENGTH, blockSize - HEADER_LENGTH) != blockSize - HEADER_LENGTH) {
+            throw new EOFException("Unexpected end of BGZF block");
+        }
+        compressedPosition += blockSize;
+        inflatedPosition += readIntLE(compressedBlock, blockSize - 4) & 0xffffffffL;
+        return compressedBlock;
+    }
+
+    static byte[] inflateBlock(byte[] compressedBlock) throws IOException {
+        int footer = compressedBlock.length - FOOTER_LENGTH;
+        int expectedCrc = readIntLE(compressedBlock, footer);
+        int inflatedSize = readIntLE(compressedBlock, footer + 4);
+        int extraLength = (compressedBlock[10] & 0xff) | ((compressedBlock[11] & 0xff) << 8);
+        int dataOffset = 12 + extraLength;
+
+        byte[] inflated = new byte[inflatedSize];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressedBlock, dataOffset, footer - dataOffset);
+            int count = 0;
+            while (count < inflatedSize && !inflater.finished()) {
+                int n = inflater.inflate(inflated, count, inflatedSize - count);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                count += n;
+            }
+            if (count != inflatedSize) {
+                throw new ZipException("Corrupt BGZF block: inflated " + count + " of " + inflatedSize + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Corrupt BGZF block: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(inflated);
+        if ((int) crc.getValue() != expectedCrc) {
+            throw new ZipException("Corrupt BGZF block: CRC mismatch");
+        }
+        return inflated;
+    }
+
+    private static int readIntLE(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff)
+                | ((bytes[offset + 1] & 0xff) << 8)
+                | ((bytes[offset + 2] & 0xff) << 16)
+                | ((bytes[offset + 3] & 0xff) << 24);
+    }
+}
@@ -0,0 +1,56 @@
+package pl.edu.icm.heap.kite;
+
+/**
+ * Split block Bloom filter of 64-bit hashes.
+ * <p>
+ * The high half of the hash selects a 256-bit block, and the low half sets one bit in each of the eight
+ * 32-bit words of the block, so a lookup touches a single cache line. The filter answers {@code false}
+ * only for hashes that were never added.
+ */
+public class BloomFilter {
+    private static final int WORDS_PER_BLOCK = 8;
+    private static final int BITS_PER_BLOCK = WORDS_PER_BLOCK * Integer.SIZE;
+    private static final int[] SALTS = {
+            0x47b6137b, 0x44974d91, 0x8824ad5b, 0xa2b7289d,
+            0x705495c7, 0x2df1424b, 0x9efc4947, 0x5c6bfb31
+    };
+
+    private final int[] words;
+    private final long blockCount;
+
+    public BloomFilter(long expectedSize, int bitsPerElement) {
+        long bits = Math.max(1, expectedSize) * bitsPerElement;
+        this.blockCount = Math.min((bits + BITS_PER_BLOCK - 1) / BITS_PER_BLOCK, Integer.MAX_VALUE / WORDS_PER_BLOCK);
+        this.words = new int[(int) blockCount * WORDS_PER_BLOCK];
+    }
+
+    public void add(long hash) {
+        int block = block(hash);
+        int key = (int) hash;
+        for (int i = 0; i < WORDS_PER_BLOCK; ++i) {
+            words[block + i] |= 1 << ((key * SALTS[i]) >>> 27);
+        }
+    }
+
+    public boolean mightContain(long hash) {
+        int block = block(hash);
+        int key = (int) hash;
+        for (int i = 0; i < WORDS_PER_BLOCK; ++i) {
+            if ((words[block + i] & (1 << ((key * SALTS[i]) >>> 27))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return size of the filter in bytes
+     */
+    public long byteSize() {
+        return (long) words.length * Integer.BYTES;
+    }
+
+    private int block(long hash) {
+        return (int) (((hash >>> 32) * blockCount) >>> 32) * WORDS_PER_BLOCK;
+    }
+}
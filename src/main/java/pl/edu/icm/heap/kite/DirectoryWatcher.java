@@ -0,0 +1,94 @@
+package pl.edu.icm.heap.kite;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Watches directory for new sample files in the server mode.
+ * <p>
+ * Files already present in the directory are reported first (in name order), then the files created in (or moved to)
+ * the directory. Hidden files are ignored, so a file can be written under a hidden name and renamed when it is
+ * complete. Watching stops when the {@value #STOP_FILENAME} file appears in the directory.
+ */
+public class DirectoryWatcher {
+    public static final String STOP_FILENAME = "kite.stop";
+
+    private final Path directory;
+    private final Set<Path> reportedPaths;
+
+    public DirectoryWatcher(Path directory) {
+        this.directory = directory;
+        this.reportedPaths = new HashSet<>();
+    }
+
+    /**
+     * Calls {@code consumer} with every new file until the stop file appears (the stop file is then removed)
+     * or the directory becomes inaccessible.
+     */
+    public void watch(Consumer<Path> consumer) throws IOException, InterruptedException {
+        try (WatchService watchService = directory.getFileSystem().newWatchService()) {
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+            if (scan(consumer)) {
+                return;
+            }
+            while (true) {
+                WatchKey watchKey = watchService.take();
+                boolean stop = false;
+                for (WatchEvent<?> event : watchKey.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        stop |= scan(consumer);
+                    } else {
+                        stop |= offer(directory.resolve((Path) event.context()), consumer);
+                    }
+                }
+                if (stop || !watchKey.reset()) {
+                    return;
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // the directory is no longer watched
+        }
+    }
+
+    /**
+     * @return if the stop file was found
+     */
+    private boolean scan(Consumer<Path> consumer) throws IOException {
+        List<Path> paths;
+        try (Stream<Path> stream = Files.list(directory)) {
+            paths = stream.sorted().toList();
+        }
+        boolean stop = false;
+        for (Path path : paths) {
+            stop |= offer(path, consumer);
+        }
+        return stop;
+    }
+
+    /**
+     * @return if the path is the stop file
+     */
+    private boolean offer(Path path, Consumer<Path> consumer) throws IOException {
+        String filename = path.getFileName().toString();
+        if (STOP_FILENAME.equals(filename)) {
+            Files.deleteIfExists(path);
+            return true;
+        }
+        if (filename.startsWith(".") || !Files.isRegularFile(path) || !reportedPaths.add(path)) {
+            return false;
+        }
+        consumer.accept(path);
+        return false;
+    }
+}
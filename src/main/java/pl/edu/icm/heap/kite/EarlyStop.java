@@ -0,0 +1,78 @@
+package pl.edu.icm.heap.kite;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Condition to stop reading a file before its end, checked on partial results while the file is read.
+ * <p>
+ * Reading stops when any virus reaches {@code indexThreshold}, or when the top {@code topCount} viruses
+ * (in the order of the results) have not changed for {@code stableReads} reads. A non-positive value disables
+ * the respective condition. The object keeps the state of a single file.
+ */
+public class EarlyStop {
+    private final double indexThreshold;
+    private final long stableReads;
+    private final int topCount;
+    private List<String> topNames;
+    private long topChangeReads;
+    private String reason;
+    private double consumedFraction;
+
+    public EarlyStop(double indexThreshold, long stableReads, int topCount) {
+        this.indexThreshold = indexThreshold;
+        this.stableReads = stableReads;
+        this.topCount = Math.max(1, topCount);
+        this.topNames = List.of();
+        this.consumedFraction = 1.0;
+    }
+
+    public boolean isEnabled() {
+        return indexThreshold > 0 || stableReads > 0;
+    }
+
+    /**
+     * @param intersectionSizes numbers of shingles of each virus found in the first {@code reads} reads
+     * @return if reading should stop
+     */
+    public boolean check(VirusesDatabase virusesDatabase, int[] intersectionSizes, long reads) {
+        PriorityQueue<VirusesDatabase.CrosscheckResult> resultsPQ = virusesDatabase.crosscheck(intersectionSizes);
+        List<String> names = new ArrayList<>(topCount);
+        for (int i = 0; i < topCount && !resultsPQ.isEmpty(); ++i) {
+            VirusesDatabase.CrosscheckResult result = resultsPQ.poll();
+            if (indexThreshold > 0 && result.value() >= indexThreshold) {
+                reason = String.format("%s reached index %.6f", result.name(), result.value());
+                return true;
+            }
+            names.add(result.name());
+        }
+        if (!names.equals(topNames)) {
+            topNames = names;
+            topChangeReads = reads;
+        } else if (stableReads > 0 && reads - topChangeReads >= stableReads) {
+            reason = String.format("top %d stable for %d reads", topCount, reads - topChangeReads);
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isStopped() {
+        return reason != null;
+    }
+
+    /**
+     * @return why reading was stopped, or {@code null} if the file was read to the end
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    public double getConsumedFraction() {
+        return consumedFraction;
+    }
+
+    public void setConsumedFraction(double consumedFraction) {
+        this.consumedFraction = consumedFraction;
+    }
+}
@@ -0,0 +1,48 @@
+package pl.edu.icm.heap.kite;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Compression format of FASTQ file recognized by its first bytes.
+ */
+public enum FastqFormat {
+    PLAIN,
+    GZIP,
+    BGZF;
+
+    static final int HEADER_LENGTH = BgzfInputStream.HEADER_LENGTH;
+
+    public static FastqFormat of(byte[] header, int length) {
+        if (BgzfInputStream.isBgzfHeader(header, length)) {
+            return BGZF;
+        }
+        if (length >= 2 && (header[0] & 0xff) == 31 && (header[1] & 0xff) == 139) {
+            return GZIP;
+        }
+        return PLAIN;
+    }
+
+    public static FastqFormat of(Path path) throws IOException {
+        try (InputStream input = Files.newInputStream(path)) {
+            byte[] header = input.readNBytes(HEADER_LENGTH);
+            return of(header, header.length);
+        }
+    }
+
+    /**
+     * @return if the file can be split into byte ranges that are processed independently
+     */
+    public boolean isSplittable() {
+        return this != GZIP;
+    }
+
+    /**
+     * @return estimated ratio of the size of FASTQ data to the size of the file (gzip compresses FASTQ 3-5 times)
+     */
+    public double estimatedInflateRatio() {
+        return this == PLAIN ? 1.0 : 4.0;
+    }
+}
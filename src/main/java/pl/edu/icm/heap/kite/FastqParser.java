@@ -0,0 +1,110 @@
+package pl.edu.icm.heap.kite;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Byte-level parser of 4-line FASTQ records (header, sequence, {@code '+'} line, quality).
+ * <p>
+ * The parser works directly on (inflated) bytes and never creates Strings. Quality lines are skipped
+ * by the length of the sequence line, without looking for their line breaks.
+ */
+public class FastqParser {
+    private FastqParser() {
+    }
+
+    /**
+     * Checks if the line starting at {@code position} is a header of a record. The header starts with
+     * {@code '@'} and two lines later there is a line starting with {@code '+'}. A quality line starting with
+     * {@code '@'} is never followed by a {@code '+'} line two lines later, as it is a sequence line.
+     */
+    public static boolean isRecordStart(ByteBuffer buffer, int position, int to) {
+        if (position >= to || buffer.get(position) != '@') {
+            return false;
+        }
+        int headerEnd = indexOfNewLine(buffer, position, to);
+        if (headerEnd < 0) {
+            return false;
+        }
+        int sequenceEnd = indexOfNewLine(buffer, headerEnd + 1, to);
+        return sequenceEnd >= 0 && sequenceEnd + 1 < to && buffer.get(sequenceEnd + 1) == '+';
+    }
+
+    /**
+     * @return position of the last record start in {@code [from, to)} that is at the beginning of a line,
+     * or {@code -1} if there is no recognizable record start
+     */
+    public static int lastRecordStart(ByteBuffer buffer, int from, int to) {
+        for (int position = to - 1; position >= from; --position) {
+            if ((position == from || buffer.get(position - 1) == '\n') && isRecordStart(buffer, position, to)) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return position of the first record start in {@code (after, to)} that follows a line break,
+     * or {@code -1} if there is no recognizable record start
+     */
+    public static int nextRecordStart(ByteBuffer buffer, int after, int to) {
+        for (int position = after + 1; position < to; ++position) {
+            if (buffer.get(position - 1) == '\n' && isRecordStart(buffer, position, to)) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Calls {@code consumer} with the sequence line of each record in {@code [from, to)}.
+     * The range has to start at a record start. The last line does not need to end with a line break.
+     */
+    public static void forEachSequence(ByteBuffer buffer, int from, int to, SequenceConsumer consumer) {
+        int position = from;
+        while (position < to) {
+            int headerEnd = indexOfNewLine(buffer, position, to);
+            if (headerEnd < 0) {
+                return;
+            }
+            int sequenceStart = headerEnd + 1;
+            int sequenceEnd = indexOfNewLine(buffer, sequenceStart, to);
+            if (sequenceEnd < 0) {
+                sequenceEnd = to;
+            }
+            consumer.accept(buffer, sequenceStart, sequenceEnd);
+            if (sequenceEnd + 1 >= to) {
+                return;
+            }
+
+            int plusEnd = indexOfNewLine(buffer, sequenceEnd + 1, to);
+            if (plusEnd < 0) {
+                return;
+            }
+            int qualityEnd = plusEnd + 1 + (sequenceEnd - sequenceStart);
+            if (qualityEnd >= to) {
+                return;
+            }
+            if (buffer.get(qualityEnd) != '\n') {
+                qualityEnd = indexOfNewLine(buffer, plusEnd + 1, to);
+                if (qualityEnd < 0) {
+                    return;
+                }
+            }
+            position = qualityEnd + 1;
+        }
+    }
+
+    private static int indexOfNewLine(ByteBuffer buffer, int from, int to) {
+        for (int i = from; i < to; ++i) {
+            if (buffer.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @FunctionalInterface
+    public interface SequenceConsumer {
+        void accept(ByteBuffer buffer, int from, int to);
+    }
+}
@@ -0,0 +1,81 @@
+package pl.edu.icm.heap.kite;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Part of input file that is processed by a single PCJ thread.
+ * <p>
+ * Chunk is a byte range {@code [start, end)} of the file. Chunk processes records that start in its range:
+ * in BGZF file - in blocks that start in the range, in uncompressed file - directly in the range.
+ * A record that starts exactly at the beginning of the range belongs to the previous chunk,
+ * so the ranges can be cut at arbitrary offsets and every record is processed exactly once.
+ * <p>
+ * Sample is usually a single file, but paired-end sample consists of two files (mates), that are processed
+ * as separate chunks of the sample. The {@code index} and {@code count} numbers chunks of the whole sample.
+ * <p>
+ * The {@code estimatedSize} is the estimated size of the FASTQ data of the chunk after decompression,
+ * that is used to process the largest chunks first.
+ */
+public record FileChunk(int fileIndex, String sample, String filename, int index, int count, long start, long end,
+                        long estimatedSize) implements Serializable {
+
+    /**
+     * Splits sample files into chunks of about {@code chunkSize} bytes. Gzip files (that cannot be split)
+     * and files that cannot be examined are not split. Range of the whole file chunk is the whole file.
+     */
+    public static List<FileChunk> split(int fileIndex, List<String> filenames, long chunkSize) {
+        String sample = String.join(File.pathSeparator, filenames);
+        List<long[]> ranges = new ArrayList<>();
+        List<String> rangeFilenames = new ArrayList<>();
+        for (String filename : filenames) {
+            for (long[] range : splitFile(filename, chunkSize)) {
+                ranges.add(range);
+                rangeFilenames.add(filename);
+            }
+        }
+        return IntStream.range(0, ranges.size())
+                .mapToObj(i -> new FileChunk(fileIndex, sample, rangeFilenames.get(i), i, ranges.size(),
+                        ranges.get(i)[0], ranges.get(i)[1], ranges.get(i)[2]))
+                .toList();
+    }
+
+    private static List<long[]> splitFile(String filename, long chunkSize) {
+        Path path = Path.of(filename);
+        long size = 0;
+        double inflateRatio = 1.0;
+        try {
+            size = Files.size(path);
+            FastqFormat format = FastqFormat.of(path);
+            inflateRatio = format.estimatedInflateRatio();
+            if (chunkSize > 0 && size > chunkSize && format.isSplittable()) {
+                int count = (int) ((size + chunkSize - 1) / chunkSize);
+                long fileSize = size;
+                double ratio = inflateRatio;
+                return IntStream.range(0, count)
+                        .mapToObj(i -> range(fileSize * i / count, fileSize * (i + 1) / count, ratio))
+                        .toList();
+            }
+        } catch (IOException e) {
+            // the file is processed as a whole, so the problem is reported while processing it
+        }
+        return List.of(range(0, size, inflateRatio));
+    }
+
+    private static long[] range(long start, long end, double inflateRatio) {
+        return new long[]{start, end, (long) ((end - start) * inflateRatio)};
+    }
+
+    /**
+     * @return if the chunk is the whole sample
+     */
+    public boolean isWholeFile() {
+        return count == 1;
+    }
+}
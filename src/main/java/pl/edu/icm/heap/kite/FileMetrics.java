@@ -0,0 +1,124 @@
+package pl.edu.icm.heap.kite;
+
+import java.io.Serializable;
+
+/**
+ * Counters and times of the stages of processing a file (or its chunk) by a PCJ thread, or their totals.
+ * <p>
+ * Times are in nanoseconds. Reading includes inflating, as seen by the thread that reads the input, and lookup
+ * includes k-mer extraction. Times of workers are summed, so they can exceed the wall-clock time.
+ * The metrics of a file are also emitted as {@link FileProcessedEvent} when JFR is recording.
+ */
+public class FileMetrics implements Serializable {
+    static final String TSV_HEADER = String.join("\t", "thread", "file", "chunk", "chunks",
+            "compressedBytes", "inflatedBytes", "reads", "bases", "kmers", "kmerHits", "shingles",
+            "readNanos", "waitNanos", "parseNanos", "lookupNanos", "crosscheckNanos", "communicationNanos",
+            "totalNanos", "maxQueueDepth");
+
+    private final int threadId;
+    private final String filename;
+    private final int chunkIndex;
+    private final int chunkCount;
+    private final transient FileProcessedEvent event;
+    private final long startNanos;
+    long compressedBytes;
+    long inflatedBytes;
+    long reads;
+    long bases;
+    long kmers;
+    long kmerHits;
+    long shingles;
+    long readNanos;
+    long waitNanos;
+    long parseNanos;
+    long lookupNanos;
+    long crosscheckNanos;
+    long communicationNanos;
+    long totalNanos;
+    long maxQueueDepth;
+
+    /**
+     * Starts measuring processing of the file chunk.
+     */
+    public FileMetrics(int threadId, FileChunk fileChunk) {
+        this(threadId, fileChunk.filename(), fileChunk.index(), fileChunk.count(), new FileProcessedEvent());
+        event.begin();
+    }
+
+    /**
+     * Creates empty totals of the thread, or of all the threads if {@code threadId} is negative.
+     */
+    public FileMetrics(int threadId, String label) {
+        this(threadId, label, 0, 0, null);
+    }
+
+    private FileMetrics(int threadId, String filename, int chunkIndex, int chunkCount, FileProcessedEvent event) {
+        this.threadId = threadId;
+        this.filename = filename;
+        this.chunkIndex = chunkIndex;
+        this.chunkCount = chunkCount;
+        this.event = event;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Stops measuring and emits the JFR event.
+     */
+    public void finish() {
+        totalNanos = System.nanoTime() - startNanos;
+        if (event == null || !event.shouldCommit()) {
+            return;
+        }
+        event.end();
+        event.pcjThread = threadId;
+        event.filename = filename;
+        event.chunkIndex = chunkIndex;
+        event.chunkCount = chunkCount;
+        event.compressedBytes = compressedBytes;
+        event.inflatedBytes = inflatedBytes;
+        event.reads = reads;
+        event.bases = bases;
+        event.kmers = kmers;
+        event.kmerHits = kmerHits;
+        event.shingles = shingles;
+        event.readTime = readNanos;
+        event.waitTime = waitNanos;
+        event.parseTime = parseNanos;
+        event.lookupTime = lookupNanos;
+        event.crosscheckTime = crosscheckNanos;
+        event.communicationTime = communicationNanos;
+        event.maxQueueDepth = maxQueueDepth;
+        event.commit();
+    }
+
+    public void add(FileMetrics that) {
+        compressedBytes += that.compressedBytes;
+        inflatedBytes += that.inflatedBytes;
+        reads += that.reads;
+        bases += that.bases;
+        kmers += that.kmers;
+        kmerHits += that.kmerHits;
+        shingles += that.shingles;
+        readNanos += that.readNanos;
+        waitNanos += that.waitNanos;
+        parseNanos += that.parseNanos;
+        lookupNanos += that.lookupNanos;
+        crosscheckNanos += that.crosscheckNanos;
+        communicationNanos += that.communicationNanos;
+        totalNanos += that.totalNanos;
+        maxQueueDepth = Math.max(maxQueueDepth, that.maxQueueDepth);
+    }
+
+    /**
+     * @return values in the order of {@link #TSV_HEADER} columns; chunk columns of totals are empty
+     */
+    public String toTsv() {
+        return String.join("\t", threadId < 0 ? "*" : String.valueOf(threadId), filename,
+                chunkCount > 0 ? String.valueOf(chunkIndex + 1) : "", chunkCount > 0 ? String.valueOf(chunkCount) : "",
+                String.valueOf(compressedBytes), String.valueOf(inflatedBytes),
+                String.valueOf(reads), String.valueOf(bases), String.valueOf(kmers), String.valueOf(kmerHits),
+                String.valueOf(shingles), String.valueOf(readNanos), String.valueOf(waitNanos),
+                String.valueOf(parseNanos), String.valueOf(lookupNanos), String.valueOf(crosscheckNanos),
+                String.valueOf(communicationNanos), String.valueOf(totalNanos), String.valueOf(maxQueueDepth));
+    }
+}
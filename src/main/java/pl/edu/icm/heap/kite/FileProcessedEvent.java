@@ -0,0 +1,84 @@
+package pl.edu.icm.heap.kite;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event of processing a file (or its chunk) by a PCJ thread, with the values of {@link FileMetrics}.
+ */
+@Name("pl.edu.icm.heap.kite.FileProcessed")
+@Label("File Processed")
+@Category("KITE")
+@Description("Processing of a FASTQ file or its chunk by a PCJ thread")
+class FileProcessedEvent extends Event {
+    @Label("PCJ Thread")
+    int pcjThread;
+
+    @Label("File")
+    String filename;
+
+    @Label("Chunk Index")
+    int chunkIndex;
+
+    @Label("Chunk Count")
+    int chunkCount;
+
+    @Label("Compressed Bytes")
+    @DataAmount
+    long compressedBytes;
+
+    @Label("Inflated Bytes")
+    @DataAmount
+    long inflatedBytes;
+
+    @Label("Reads")
+    long reads;
+
+    @Label("Bases")
+    long bases;
+
+    @Label("K-mers Looked Up")
+    long kmers;
+
+    @Label("K-mer Hits")
+    long kmerHits;
+
+    @Label("Shingles")
+    @Description("Number of distinct database shingles found")
+    long shingles;
+
+    @Label("Read Time")
+    @Description("Time of reading and inflating the input by the reading thread")
+    @Timespan
+    long readTime;
+
+    @Label("Wait Time")
+    @Description("Time of the reading thread waiting for workers to take the chunks")
+    @Timespan
+    long waitTime;
+
+    @Label("Parse Time")
+    @Timespan
+    long parseTime;
+
+    @Label("Lookup Time")
+    @Description("Time of k-mer extraction and lookup, summed over workers")
+    @Timespan
+    long lookupTime;
+
+    @Label("Crosscheck Time")
+    @Timespan
+    long crosscheckTime;
+
+    @Label("Communication Time")
+    @Timespan
+    long communicationTime;
+
+    @Label("Max Executor Queue Depth")
+    long maxQueueDepth;
+}
@@ -0,0 +1,117 @@
+package pl.edu.icm.heap.kite;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HexFormat;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+/**
+ * On-disk cache of shingles found in sample files, stored as ids of the shingles in the database.
+ * <p>
+ * The entry of a sample is keyed by the absolute path, size and modification time of its files
+ * (separated by {@link File#pathSeparator}, as paired-end mates), and by the fingerprint,
+ * K-mer lengths and sketch scale of the database, so a modified file or a different database never uses
+ * a stale entry. Entries are written to temporary files and atomically renamed, so the directory can be shared
+ * by all PCJ threads and nodes. Stale entries are never removed, but the directory can be cleaned at any time.
+ */
+public class HitCache {
+    private static final byte[] MAGIC = "KITE-HIT".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final String EXTENSION = ".hits";
+
+    private final Path directory;
+    private final String databaseKey;
+
+    public HitCache(Path directory, VirusesDatabase virusesDatabase) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.databaseKey = String.format("%016x\t%s\t%d", virusesDatabase.fingerprint(),
+                Utils.shinglesLengthToString(virusesDatabase.getShinglesLength()), virusesDatabase.getSketchScale());
+    }
+
+    public String getDatabaseKey() {
+        return databaseKey;
+    }
+
+    public boolean contains(String sample) throws IOException {
+        return Files.isRegularFile(entryPath(key(sample)));
+    }
+
+    /**
+     * @return shingles found in the sample, or {@code null} if the sample is not in the cache
+     * @throws IOException if the entry cannot be read; a truncated or corrupt entry is removed
+     */
+    public BitSet load(String sample) throws IOException {
+        String key = key(sample);
+        Path entryPath = entryPath(key);
+        try (DataInputStream input = new DataInputStream(new GZIPInputStream(Files.newInputStream(entryPath)))) {
+            if (!Arrays.equals(input.readNBytes(MAGIC.length), MAGIC)
+                    || input.readInt() != VERSION
+                    || !key.equals(input.readUTF())) {
+                return null;
+            }
+            byte[] bytes = new byte[input.readInt()];
+            input.readFully(bytes);
+            return BitSet.valueOf(bytes);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (EOFException | ZipException | UTFDataFormatException e) {
+            Files.deleteIfExists(entryPath);
+            throw new IOException("Corrupt hit cache entry removed: " + entryPath, e);
+        }
+    }
+
+    public void store(String sample, BitSet shingles) throws IOException {
+        String key = key(sample);
+        Path temporaryPath = Files.createTempFile(directory, ".", EXTENSION);
+        try {
+            try (DataOutputStream output = new DataOutputStream(new GZIPOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temporaryPath))))) {
+                byte[] bytes = shingles.toByteArray();
+                output.write(MAGIC);
+                output.writeInt(VERSION);
+                output.writeUTF(key);
+                output.writeInt(bytes.length);
+                output.write(bytes);
+            }
+            Files.move(temporaryPath, entryPath(key), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporaryPath);
+        }
+    }
+
+    private String key(String sample) throws IOException {
+        StringBuilder key = new StringBuilder();
+        for (String filename : sample.split(File.pathSeparator)) {
+            Path path = Path.of(filename).toAbsolutePath().normalize();
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            key.append(String.format("%s\t%d\t%d\t", path, attributes.size(), attributes.lastModifiedTime().toMillis()));
+        }
+        return key.append(databaseKey).toString();
+    }
+
+    private Path entryPath(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return directory.resolve(HexFormat.of().formatHex(digest) + EXTENSION);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package pl.edu.icm.heap.kite;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Batch of encoded k-mers of all configured lengths, that is sent to a shard of the database for lookup.
+ */
+public class KmerBatch implements Serializable {
+    private final int[] widths;
+    private final long[][] kmers;
+    private final int[] counts;
+
+    public KmerBatch(int[] shinglesLength, int capacity) {
+        this.widths = Arrays.stream(shinglesLength).map(Kmers::wordCount).toArray();
+        this.kmers = Arrays.stream(widths)
+                .mapToObj(width -> new long[capacity * width])
+                .toArray(long[][]::new);
+        this.counts = new int[widths.length];
+    }
+
+    /**
+     * @return if the batch is full
+     */
+    public boolean add(int lengthIndex, long[] kmer) {
+        int width = widths[lengthIndex];
+        System.arraycopy(kmer, 0, kmers[lengthIndex], counts[lengthIndex] * width, width);
+        ++counts[lengthIndex];
+        return (counts[lengthIndex] + 1) * width > kmers[lengthIndex].length;
+    }
+
+    /**
+     * @return ids of the k-mers found in the database, in no particular order
+     */
+    public int[] lookup(VirusesDatabase virusesDatabase) {
+        int[] ids = new int[Arrays.stream(counts).sum()];
+        int found = 0;
+        for (int lengthIndex = 0; lengthIndex < widths.length; ++lengthIndex) {
+            for (int i = 0; i < counts[lengthIndex]; ++i) {
+                int id = virusesDatabase.getShingleId(lengthIndex, kmers[lengthIndex], i * widths[lengthIndex]);
+                if (id >= 0) {
+                    ids[found++] = id;
+                }
+            }
+        }
+        return Arrays.copyOf(ids, found);
+    }
+}
@@ -0,0 +1,71 @@
+package pl.edu.icm.heap.kite;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Rolling 2-bit encoder of k-mers of all configured lengths.
+ * <p>
+ * Each base updates every k-mer in O(1) and each k-mer that ends at that base is emitted. Characters other
+ * than {@code ACGT} reset the scanner, so no k-mer spanning them is emitted.
+ */
+public class KmerScanner {
+    private final int[] shinglesLength;
+    private final long[][] kmers;
+    private final long[] firstWordMasks;
+    private final int maxShingleLength;
+    private int validBases;
+
+    public KmerScanner(int[] shinglesLength) {
+        this.shinglesLength = shinglesLength;
+        this.kmers = Arrays.stream(shinglesLength)
+                .mapToObj(shingleLength -> new long[Kmers.wordCount(shingleLength)])
+                .toArray(long[][]::new);
+        this.firstWordMasks = Arrays.stream(shinglesLength)
+                .mapToLong(Kmers::firstWordMask)
+                .toArray();
+        this.maxShingleLength = Arrays.stream(shinglesLength).max().orElse(0);
+    }
+
+    public void reset() {
+        validBases = 0;
+    }
+
+    public void push(int c, KmerConsumer consumer) {
+        int code = Kmers.baseCode(c);
+        if (code < 0) {
+            validBases = 0;
+            return;
+        }
+        if (validBases < maxShingleLength) {
+            ++validBases;
+        }
+        for (int lengthIndex = 0; lengthIndex < kmers.length; ++lengthIndex) {
+            long[] kmer = kmers[lengthIndex];
+            Kmers.push(kmer, firstWordMasks[lengthIndex], code);
+            if (validBases >= shinglesLength[lengthIndex]) {
+                consumer.accept(lengthIndex, kmer);
+            }
+        }
+    }
+
+    public void scan(CharSequence sequence, int from, int to, KmerConsumer consumer) {
+        for (int i = from; i < to; ++i) {
+            push(sequence.charAt(i), consumer);
+        }
+    }
+
+    public void scan(ByteBuffer sequence, int from, int to, KmerConsumer consumer) {
+        for (int i = from; i < to; ++i) {
+            push(sequence.get(i), consumer);
+        }
+    }
+
+    @FunctionalInterface
+    public interface KmerConsumer {
+        /**
+         * @param kmer encoded k-mer; the array is reused by the scanner and must not be kept
+         */
+        void accept(int lengthIndex, long[] kmer);
+    }
+}
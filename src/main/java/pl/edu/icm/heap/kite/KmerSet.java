@@ -0,0 +1,194 @@
+package pl.edu.icm.heap.kite;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serial;
+import java.io.Serializable;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * Open addressing hash set of 2-bit encoded k-mers of fixed width (in words).
+ * <p>
+ * K-mers are kept densely in insertion order, so every k-mer has its own id in range {@code [0, size())}.
+ * The hash table contains only {@code id + 1} values ({@code 0} marks a free slot).
+ * <p>
+ * Both arrays are accessed through buffers, so the set can also be backed by a read-only
+ * memory-mapped file (see {@link VirusesDatabaseFile}).
+ */
+public class KmerSet implements Serializable {
+    private static final int MIN_CAPACITY = 16;
+
+    private final int width;
+    private int size;
+    transient private LongBuffer keys;
+    transient private IntBuffer slots;
+    transient private int mask;
+
+    public KmerSet(int width) {
+        this(width, MIN_CAPACITY);
+    }
+
+    public KmerSet(int width, int expectedSize) {
+        this.width = width;
+        int capacity = Math.max(MIN_CAPACITY, expectedSize);
+        this.keys = LongBuffer.wrap(new long[capacity * width]);
+        allocateSlots(capacity);
+    }
+
+    KmerSet(int width, int size, LongBuffer keys, IntBuffer slots) {
+        this.width = width;
+        this.size = size;
+        this.keys = keys;
+        this.slots = slots;
+        this.mask = slots.capacity() - 1;
+    }
+
+    @Serial
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        for (int i = 0; i < size * width; ++i) {
+            out.writeLong(keys.get(i));
+        }
+    }
+
+    @Serial
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        long[] keysArray = new long[Math.max(MIN_CAPACITY, size) * width];
+        for (int i = 0; i < size * width; ++i) {
+            keysArray[i] = in.readLong();
+        }
+        keys = LongBuffer.wrap(keysArray);
+        allocateSlots(Math.max(MIN_CAPACITY, size));
+        for (int id = 0; id < size; ++id) {
+            insertSlot(id);
+        }
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(long[] kmer) {
+        return indexOf(kmer, 0) >= 0;
+    }
+
+    public int indexOf(long[] kmer) {
+        return indexOf(kmer, 0);
+    }
+
+    public int indexOf(long[] kmer, int offset) {
+        return indexOf(kmer, offset, Kmers.hash(kmer, offset, width));
+    }
+
+    /**
+     * @param hash {@link Kmers#hash} of the k-mer, when it is already computed by the caller
+     */
+    int indexOf(long[] kmer, int offset, long hash) {
+        int slot = (int) hash & mask;
+        while (true) {
+            int id = slots.get(slot) - 1;
+            if (id < 0) {
+                return -1;
+            }
+            if (equalsAt(id, kmer, offset)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public boolean add(long[] kmer) {
+        int sizeBefore = size;
+        addAndGetIndex(kmer, 0);
+        return size > sizeBefore;
+    }
+
+    /**
+     * @return id of the k-mer, newly assigned if the k-mer was not in the set
+     */
+    public int addAndGetIndex(long[] kmer, int offset) {
+        int slot = (int) Kmers.hash(kmer, offset, width) & mask;
+        while (true) {
+            int id = slots.get(slot) - 1;
+            if (id < 0) {
+                break;
+            }
+            if (equalsAt(id, kmer, offset)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int id = size++;
+        if (size * width > keys.capacity()) {
+            keys = LongBuffer.wrap(Arrays.copyOf(keys.array(), Math.max(keys.capacity() * 2, size * width)));
+        }
+        for (int i = 0; i < width; ++i) {
+            keys.put(id * width + i, kmer[offset + i]);
+        }
+        slots.put(slot, id + 1);
+        if (size * 2 > slots.capacity()) {
+            allocateSlots(size * 2);
+            for (int i = 0; i < size; ++i) {
+                insertSlot(i);
+            }
+        }
+        return id;
+    }
+
+    public void trimToSize() {
+        keys = LongBuffer.wrap(Arrays.copyOf(keys.array(), Math.max(MIN_CAPACITY, size) * width));
+        allocateSlots(size);
+        for (int id = 0; id < size; ++id) {
+            insertSlot(id);
+        }
+    }
+
+    public void get(int id, long[] kmer) {
+        keys.get(id * width, kmer, 0, width);
+    }
+
+    LongBuffer keys() {
+        return keys.duplicate().position(0).limit(size * width);
+    }
+
+    IntBuffer slots() {
+        return slots.duplicate().clear();
+    }
+
+    private boolean equalsAt(int id, long[] kmer, int offset) {
+        int base = id * width;
+        for (int i = 0; i < width; ++i) {
+            if (keys.get(base + i) != kmer[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void allocateSlots(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(MIN_CAPACITY, expectedSize) * 2 - 1) << 1;
+        slots = IntBuffer.wrap(new int[capacity]);
+        mask = capacity - 1;
+    }
+
+    private void insertSlot(int id) {
+        int slot = (int) Kmers.hash(keys, id * width, width) & mask;
+        while (slots.get(slot) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots.put(slot, id + 1);
+    }
+}
@@ -0,0 +1,102 @@
+package pl.edu.icm.heap.kite;
+
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * 2-bit encoding of nucleotide k-mers ({@code A=0, C=1, G=2, T=3}).
+ * <p>
+ * K-mers up to {@value #BASES_PER_WORD} bases are stored in a single {@code long}. Longer k-mers are
+ * stored in {@link #wordCount(int)} words: the first word holds the leading bases that do not fill
+ * a whole word, every following word holds exactly {@value #BASES_PER_WORD} bases.
+ */
+public class Kmers {
+    public static final int BASES_PER_WORD = 32;
+    private static final byte[] BASE_CODES = new byte[256];
+
+    static {
+        Arrays.fill(BASE_CODES, (byte) -1);
+        BASE_CODES['A'] = BASE_CODES['a'] = 0;
+        BASE_CODES['C'] = BASE_CODES['c'] = 1;
+        BASE_CODES['G'] = BASE_CODES['g'] = 2;
+        BASE_CODES['T'] = BASE_CODES['t'] = 3;
+    }
+
+    private Kmers() {
+    }
+
+    public static int baseCode(int c) {
+        return BASE_CODES[c & 0xff];
+    }
+
+    public static int wordCount(int shingleLength) {
+        return (shingleLength + BASES_PER_WORD - 1) / BASES_PER_WORD;
+    }
+
+    public static long firstWordMask(int shingleLength) {
+        int bases = shingleLength - (wordCount(shingleLength) - 1) * BASES_PER_WORD;
+        return bases == BASES_PER_WORD ? -1L : (1L << (2 * bases)) - 1;
+    }
+
+    /**
+     * Shifts one base into the k-mer: every word is moved by two bits to the left, the most significant
+     * base of the k-mer is dropped and {@code baseCode} becomes the least significant base.
+     */
+    public static void push(long[] words, long firstWordMask, int baseCode) {
+        int last = words.length - 1;
+        for (int i = 0; i < last; ++i) {
+            words[i] = (words[i] << 2) | (words[i + 1] >>> 62);
+        }
+        words[0] &= firstWordMask;
+        words[last] = last == 0
+                ? ((words[last] << 2) | baseCode) & firstWordMask
+                : (words[last] << 2) | baseCode;
+    }
+
+    static long hash(long[] words, int offset, int width) {
+        long h = 0x9E3779B97F4A7C15L;
+        for (int i = offset; i < offset + width; ++i) {
+            h = mix(h ^ words[i]);
+        }
+        return h;
+    }
+
+    static long hash(LongBuffer words, int offset, int width) {
+        long h = 0x9E3779B97F4A7C15L;
+        for (int i = offset; i < offset + width; ++i) {
+            h = mix(h ^ words.get(i));
+        }
+        return h;
+    }
+
+    /**
+     * @return threshold of FracMinHash sketch that keeps about {@code 1/scale} of all k-mers
+     */
+    static long sketchThreshold(long scale) {
+        return scale <= 1 ? -1L : Long.divideUnsigned(-1L, scale);
+    }
+
+    /**
+     * Checks if k-mer belongs to the sketch. The hash is mixed once more, so the sketch
+     * does not select only small hashes for hash tables and filters.
+     */
+    static boolean isInSketch(long hash, long sketchThreshold) {
+        return sketchThreshold == -1L || Long.compareUnsigned(mix(hash), sketchThreshold) < 0;
+    }
+
+    /**
+     * @return shard in range {@code [0, shardCount)} that owns the k-mer; independent of sketch and hash table bits
+     */
+    static int shard(long hash, int shardCount) {
+        return shardCount <= 1 ? 0 : (int) Long.remainderUnsigned(mix(~hash), shardCount);
+    }
+
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -1,12 +1,14 @@
 package pl.edu.icm.heap.kite;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
 import java.io.Serializable;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
@@ -14,54 +16,105 @@ import java.time.Instant;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.zip.GZIPInputStream;
 
+import org.pcj.AsyncTask;
 import org.pcj.ExecutionBuilder;
 import org.pcj.PCJ;
+import org.pcj.PcjFuture;
 import org.pcj.RegisterStorage;
 import org.pcj.StartPoint;
 import org.pcj.Storage;
 
-import static java.util.stream.Collectors.collectingAndThen;
-import static java.util.stream.Collectors.counting;
-import static java.util.stream.Collectors.groupingBy;
-
 @RegisterStorage
 public class PcjMain implements StartPoint {
+    private static final Pattern FIRST_MATE_PATTERN = Pattern.compile("(.*[._-])(R?)1([._-][^/\\\\]*)$");
+    private static final FileChunk NO_FILE_CHUNK_YET = new FileChunk(-1, "", "", 0, 0, 0, 0, 0);
+    private static final long SERVER_POLL_INTERVAL_MS = 200;
+
     private int[] SHINGLES_LENGTH;
+    private long SKETCH_SCALE;
     private int GZIP_BUFFER_KB;
     private int READER_BUFFER_KB;
     private int PROCESSING_BUFFER_KB;
     private int OUTPUT_VIRUS_COUNT;
+    private int THREAD_POOL_SIZE;
+    private int SPLIT_SIZE_MB;
+    private int PREFILTER_BITS;
+    private boolean SHARDED_DATABASE;
+    private double EARLY_STOP_INDEX;
+    private long EARLY_STOP_READS;
+    private boolean PAIRED_END;
     private Pattern filesGroupPattern;
+    private Path watchDirectory;
+    private Set<String> groupNames;
+    private int nextFileIndex;
+    private Thread watcherThread;
+    private PcjFuture<FileChunk> nextFileChunk;
     private ExecutorService executor;
+    @SuppressWarnings({"serializable"})
     private VirusesDatabase virusesDatabase;
+    private ShinglesReader shinglesReader;
+    private Queue<PcjFuture<Integer>> pendingLookups;
+    private final AtomicLong shardKmerHits = new AtomicLong();
+    private Path metricsFile;
+    private Path hitCacheDirectory;
+    private HitCache hitCache;
+    private FileMetrics threadMetrics;
+    private List<FileMetrics> filesMetrics;
+    private volatile int currentFileIndex;
+    @SuppressWarnings({"FieldCanBeLocal"})
+    private ConcurrentLinkedQueue<FileChunk> fileChunks;
     @SuppressWarnings({"FieldCanBeLocal"})
-    private ConcurrentLinkedQueue<String> filenames;
+    private AtomicBoolean serverRunning;
+    @SuppressWarnings({"serializable", "FieldCanBeLocal"})
+    private Map<Integer, ShinglesAndCount> fileShinglesMap;
+    private Map<String, BitSet> groupsShingles;
+    @SuppressWarnings({"serializable", "FieldCanBeLocal"})
+    private Map<String, BitSet>[] childrenGroupsShingles;
+    @SuppressWarnings({"serializable", "FieldCanBeLocal"})
+    private Map<Integer, BitSet> shardFilesShingles;
     @SuppressWarnings({"serializable", "FieldCanBeLocal"})
-    private Map<String, ShinglesAndCount> shinglesMap;
+    private Map<String, BitSet> shardGroupsShingles;
+    @SuppressWarnings({"FieldCanBeLocal"})
+    private int[] databaseVirusSizes;
+    @SuppressWarnings({"FieldCanBeLocal"})
+    private FileMetrics[][] threadsMetrics;
 
     @Storage
     enum Vars {
-        filenames,
-        shinglesMap
+        fileChunks,
+        serverRunning,
+        fileShinglesMap,
+        childrenGroupsShingles,
+        virusesDatabase,
+        shardFilesShingles,
+        shardGroupsShingles,
+        databaseVirusSizes,
+        threadsMetrics
     }
 
     public static void main(String[] args) throws IOException {
@@ -86,21 +139,39 @@ public class PcjMain implements StartPoint {
             }
             args = Arrays.copyOfRange(args, 1, args.length);
         }
-        if (args.length == 0) {
+        if (args.length > 0 && "build-db".equals(args[0])) {
+            if (args.length != 2) {
+                System.err.println("Give output database filename as the only argument of build-db!");
+                System.exit(1);
+            }
+            buildDatabase(Path.of(args[1]));
+            return;
+        }
+        if (args.length == 0 && System.getProperty("watchDirectory", "").isBlank()) {
             System.err.println("Give filenames (type: .fq.gz) as arguments!");
         }
 
         ExecutionBuilder builder = PCJ.executionBuilder(PcjMain.class)
                 .addProperty("shingleLength", System.getProperty("shingleLength", "" + (31)))
+                .addProperty("sketchScale", System.getProperty("sketchScale", "" + (1)))
                 .addProperty("gzipBuffer", System.getProperty("gzipBuffer", "" + (512)))
                 .addProperty("readerBuffer", System.getProperty("readerBuffer", "" + (512)))
                 .addProperty("processingBuffer", System.getProperty("processingBuffer", "" + (64)))
                 .addProperty("threadPoolSize", System.getProperty("threadPoolSize", "" + Runtime.getRuntime().availableProcessors()))
+                .addProperty("splitSize", System.getProperty("splitSize", "" + (0)))
+                .addProperty("prefilterBits", System.getProperty("prefilterBits", "" + (0)))
+                .addProperty("shardedDatabase", System.getProperty("shardedDatabase", "" + false))
+                .addProperty("earlyStopIndex", System.getProperty("earlyStopIndex", "" + (0.0)))
+                .addProperty("earlyStopReads", System.getProperty("earlyStopReads", "" + (0)))
+                .addProperty("pairedEnd", System.getProperty("pairedEnd", "" + false))
                 .addProperty("outputVirusCount", System.getProperty("outputVirusCount",
                         System.getProperty("outputHpvCount", "" + (0))))
                 .addProperty("databasePaths", System.getProperty("databasePaths",
                         System.getProperty("databasePath", System.getProperty("hpvVirusesPath", ""))))
                 .addProperty("filesGroupPattern", System.getProperty("filesGroupPattern", ""))
+                .addProperty("watchDirectory", System.getProperty("watchDirectory", ""))
+                .addProperty("metricsFile", System.getProperty("metricsFile", ""))
+                .addProperty("hitCacheDirectory", System.getProperty("hitCacheDirectory", ""))
                 .addProperty("files", String.join(File.pathSeparator, args));
 
         File nodesFile = new File(System.getProperty("nodesFile", "nodes.txt"));
@@ -115,92 +186,219 @@ public class PcjMain implements StartPoint {
         }
     }
 
+    private static void buildDatabase(Path outputPath) throws IOException {
+        Instant startTime = Instant.now();
+        int[] shinglesLength = Utils.parseShinglesLength(System.getProperty("shingleLength", "" + (31)));
+        long sketchScale = Long.parseLong(System.getProperty("sketchScale", "" + (1)));
+        int threadPoolSize = Integer.parseInt(System.getProperty("threadPoolSize", "" + Runtime.getRuntime().availableProcessors()));
+        String databasePaths = System.getProperty("databasePaths",
+                System.getProperty("databasePath", System.getProperty("hpvVirusesPath", "")));
+        System.err.printf("[%s] shingleLength = %s%n", getTimeAndDate(), Utils.shinglesLengthToString(shinglesLength));
+        System.err.printf("[%s] sketchScale = %d%n", getTimeAndDate(), sketchScale);
+        System.err.printf("[%s] threadPoolSize = %d%n", getTimeAndDate(), threadPoolSize);
+        System.err.printf("[%s] databasePaths = %s%n", getTimeAndDate(), databasePaths);
+
+        List<Path> fastaPaths = Arrays.stream(databasePaths.split(File.pathSeparator))
+                .filter(databasePath -> !databasePath.isEmpty())
+                .map(Path::of)
+                .toList();
+        System.err.printf("[%s] Reading database files: %s...%n", getTimeAndDate(), fastaPaths);
+        VirusesDatabase virusesDatabase = new VirusesDatabase(shinglesLength, sketchScale);
+        ExecutorService executor = Executors.newFixedThreadPool(threadPoolSize);
+        try {
+            virusesDatabase.loadFromFiles(fastaPaths, executor, threadPoolSize);
+        } finally {
+            executor.shutdown();
+        }
+
+        System.err.printf("[%s] Writing %d viruses with %d shingles to database file: %s%n",
+                getTimeAndDate(), virusesDatabase.count(), virusesDatabase.shinglesCount(), outputPath);
+        VirusesDatabaseFile.write(virusesDatabase, outputPath);
+        System.err.printf("[%s] Total time: %.9f%n", getTimeAndDate(),
+                Duration.between(startTime, Instant.now()).toNanos() / 1e9);
+    }
+
     @Override
     public void main() {
         Instant startTime = Instant.now();
-        SHINGLES_LENGTH = Arrays.stream(PCJ.getProperty("shingleLength").split(","))
-                .map(String::strip)
-                .filter(Utils::isNonNegativeInteger)
-                .mapToInt(Integer::parseInt)
-                .sorted()
-                .toArray();
+        SHINGLES_LENGTH = Utils.parseShinglesLength(PCJ.getProperty("shingleLength"));
+        SKETCH_SCALE = Long.parseLong(PCJ.getProperty("sketchScale"));
         GZIP_BUFFER_KB = Integer.parseInt(PCJ.getProperty("gzipBuffer"));
         READER_BUFFER_KB = Integer.parseInt(PCJ.getProperty("readerBuffer"));
         PROCESSING_BUFFER_KB = Integer.parseInt(PCJ.getProperty("processingBuffer"));
         OUTPUT_VIRUS_COUNT = Integer.parseInt(PCJ.getProperty("outputVirusCount"));
-        int threadPoolSize = Integer.parseInt(PCJ.getProperty("threadPoolSize"));
+        THREAD_POOL_SIZE = Integer.parseInt(PCJ.getProperty("threadPoolSize"));
+        SPLIT_SIZE_MB = Integer.parseInt(PCJ.getProperty("splitSize"));
+        PREFILTER_BITS = Integer.parseInt(PCJ.getProperty("prefilterBits"));
+        SHARDED_DATABASE = Boolean.parseBoolean(PCJ.getProperty("shardedDatabase"));
+        EARLY_STOP_INDEX = Double.parseDouble(PCJ.getProperty("earlyStopIndex"));
+        EARLY_STOP_READS = Long.parseLong(PCJ.getProperty("earlyStopReads"));
+        PAIRED_END = Boolean.parseBoolean(PCJ.getProperty("pairedEnd"));
         String databasePaths = PCJ.getProperty("databasePaths");
 
         String filesGroupPatternString = PCJ.getProperty("filesGroupPattern");
         if (!filesGroupPatternString.isBlank()) {
             filesGroupPattern = Pattern.compile(filesGroupPatternString);
         }
+        String metricsFileString = PCJ.getProperty("metricsFile");
+        if (!metricsFileString.isBlank()) {
+            metricsFile = Path.of(metricsFileString);
+        }
+        String hitCacheDirectoryString = PCJ.getProperty("hitCacheDirectory");
+        if (!hitCacheDirectoryString.isBlank()) {
+            hitCacheDirectory = Path.of(hitCacheDirectoryString);
+        }
+        String watchDirectoryString = PCJ.getProperty("watchDirectory");
+        if (!watchDirectoryString.isBlank()) {
+            watchDirectory = Path.of(watchDirectoryString);
+        }
 
         if (PCJ.myId() == 0) {
             System.err.printf("[%s] shingleLength = %s%n", getTimeAndDate(), Utils.shinglesLengthToString(SHINGLES_LENGTH));
+            System.err.printf("[%s] sketchScale = %d%n", getTimeAndDate(), SKETCH_SCALE);
             System.err.printf("[%s] gzipBuffer = %d%n", getTimeAndDate(), GZIP_BUFFER_KB);
             System.err.printf("[%s] readerBuffer = %d%n", getTimeAndDate(), READER_BUFFER_KB);
             System.err.printf("[%s] processingBuffer = %d%n", getTimeAndDate(), PROCESSING_BUFFER_KB);
-            System.err.printf("[%s] threadPoolSize = %d%n", getTimeAndDate(), threadPoolSize);
+            System.err.printf("[%s] threadPoolSize = %d%n", getTimeAndDate(), THREAD_POOL_SIZE);
+            System.err.printf("[%s] splitSize = %d%n", getTimeAndDate(), SPLIT_SIZE_MB);
+            System.err.printf("[%s] prefilterBits = %d%n", getTimeAndDate(), PREFILTER_BITS);
+            System.err.printf("[%s] shardedDatabase = %b%n", getTimeAndDate(), SHARDED_DATABASE);
+            System.err.printf("[%s] earlyStopIndex = %f%n", getTimeAndDate(), EARLY_STOP_INDEX);
+            System.err.printf("[%s] earlyStopReads = %d%n", getTimeAndDate(), EARLY_STOP_READS);
+            System.err.printf("[%s] pairedEnd = %b%n", getTimeAndDate(), PAIRED_END);
             System.err.printf("[%s] outputVirusCount = %d%n", getTimeAndDate(), OUTPUT_VIRUS_COUNT);
             System.err.printf("[%s] databasePaths = %s%n", getTimeAndDate(), databasePaths);
 
-            filenames = new ConcurrentLinkedQueue<>(
-                    Arrays.stream(PCJ.getProperty("files", "").split(File.pathSeparator))
-                            .filter(s -> !s.isBlank())
-                            .toList());
+            List<String> filenames = Arrays.stream(PCJ.getProperty("files", "").split(File.pathSeparator))
+                    .filter(s -> !s.isBlank())
+                    .toList();
+            List<List<String>> samples = PAIRED_END ? pairMates(filenames) : filenames.stream().map(List::of).toList();
+            List<String> sampleNames = samples.stream().map(files -> String.join(File.pathSeparator, files)).toList();
             System.err.printf("[%s] Files to process (%d): %s%n", getTimeAndDate(), filenames.size(), filenames);
+            if (samples.size() < filenames.size()) {
+                System.err.printf("[%s] Samples to process (%d): %s%n", getTimeAndDate(), samples.size(), sampleNames);
+            }
+
+            fileChunks = IntStream.range(0, samples.size())
+                    .mapToObj(fileIndex -> FileChunk.split(fileIndex, samples.get(fileIndex), SPLIT_SIZE_MB * 1024L * 1024L))
+                    .flatMap(List::stream)
+                    .sorted(Comparator.comparingLong(FileChunk::estimatedSize).reversed())
+                    .collect(Collectors.toCollection(ConcurrentLinkedQueue::new));
+            fileShinglesMap = new ConcurrentHashMap<>();
+            if (fileChunks.size() > filenames.size()) {
+                System.err.printf("[%s] Chunks to process (%d)%n", getTimeAndDate(), fileChunks.size());
+            }
             System.err.printf("[%s] filesGroupPattern = %s%n", getTimeAndDate(),
                     filesGroupPattern == null ? "<none>" : filesGroupPattern.pattern());
+            System.err.printf("[%s] watchDirectory = %s%n", getTimeAndDate(),
+                    watchDirectory == null ? "<none>" : watchDirectory);
+            System.err.printf("[%s] metricsFile = %s%n", getTimeAndDate(),
+                    metricsFile == null ? "<none>" : metricsFile);
+            System.err.printf("[%s] hitCacheDirectory = %s%n", getTimeAndDate(),
+                    hitCacheDirectory == null ? "<none>" : hitCacheDirectory);
+            threadsMetrics = new FileMetrics[PCJ.threadCount()][];
+            nextFileIndex = samples.size();
 
             if (filesGroupPattern != null) {
-                shinglesMap = filenames.stream()
-                        .map(filename -> {
-                            Matcher m = filesGroupPattern.matcher(filename);
-                            return m.find() ? m.group() : "";
-                        })
-                        .collect(groupingBy(groupName -> groupName,
-                                collectingAndThen(
-                                        counting(),
-                                        count -> new ShinglesAndCount(count.intValue())
-                                )
-                        ));
+                groupNames = sampleNames.stream()
+                        .map(this::getGroupName)
+                        .collect(Collectors.toCollection(TreeSet::new));
 
-                System.err.printf("[%s] File groups (%d): %s%n", getTimeAndDate(), shinglesMap.size(), shinglesMap.keySet());
+                System.err.printf("[%s] File groups (%d): %s%n", getTimeAndDate(), groupNames.size(), groupNames);
             }
         }
-        executor = Executors.newFixedThreadPool(threadPoolSize);
+        groupsShingles = new HashMap<>();
+        threadMetrics = new FileMetrics(PCJ.myId(), "<thread total>");
+        filesMetrics = new ArrayList<>();
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Map<String, BitSet>[] childrenGroupsShinglesArray = new Map[2];
+        childrenGroupsShingles = childrenGroupsShinglesArray;
+        executor = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
 
         if (PCJ.myId() == 0) {
             System.err.printf("[%s] Reading virus database files by all threads%n", getTimeAndDate());
         }
 
-        virusesDatabase = new VirusesDatabase(SHINGLES_LENGTH);
+        virusesDatabase = SHARDED_DATABASE
+                ? new VirusesDatabase(SHINGLES_LENGTH, SKETCH_SCALE, PCJ.myId(), PCJ.threadCount())
+                : new VirusesDatabase(SHINGLES_LENGTH, SKETCH_SCALE);
         try {
             Instant databasesStartTime = Instant.now();
 
-            for (String databasePath : databasePaths.split(File.pathSeparator)) {
-                if (databasePath.isEmpty()) {
+            List<String> databasePathList = Arrays.stream(databasePaths.split(File.pathSeparator))
+                    .filter(databasePath -> !databasePath.isEmpty())
+                    .toList();
+            List<Path> fastaPaths = new ArrayList<>();
+            for (String databasePath : databasePathList) {
+                if (VirusesDatabaseFile.isDatabaseFile(Path.of(databasePath))) {
+                    if (databasePathList.size() > 1) {
+                        throw new IOException("Precompiled database file has to be the only database path: " + databasePath);
+                    }
+                    if (SHARDED_DATABASE) {
+                        throw new IOException("Precompiled database file cannot be sharded: " + databasePath);
+                    }
+                    if (PCJ.myId() == 0) {
+                        System.err.printf("[%s] Mapping precompiled database file: %s...", getTimeAndDate(), databasePath);
+                        System.err.flush();
+                    }
+                    virusesDatabase = VirusesDatabaseFile.map(Path.of(databasePath));
+                    if (!Arrays.equals(SHINGLES_LENGTH, virusesDatabase.getShinglesLength())) {
+                        SHINGLES_LENGTH = virusesDatabase.getShinglesLength();
+                        if (PCJ.myId() == 0) {
+                            System.err.printf(" shingleLength from database file = %s...",
+                                    Utils.shinglesLengthToString(SHINGLES_LENGTH));
+                        }
+                    }
+                    if (SKETCH_SCALE != virusesDatabase.getSketchScale()) {
+                        SKETCH_SCALE = virusesDatabase.getSketchScale();
+                        if (PCJ.myId() == 0) {
+                            System.err.printf(" sketchScale from database file = %d...", SKETCH_SCALE);
+                        }
+                    }
+                    if (PCJ.myId() == 0) {
+                        System.err.printf(" takes %s%n", Duration.between(databasesStartTime, Instant.now()).toNanos() / 1e9);
+                    }
                     continue;
                 }
+                fastaPaths.add(Path.of(databasePath));
+            }
 
-                Instant databaseStartTime = Instant.now();
+            if (!fastaPaths.isEmpty()) {
                 if (PCJ.myId() == 0) {
-                    System.err.printf("[%s] Reading database file: %s...", getTimeAndDate(), databasePath);
+                    System.err.printf("[%s] Reading database files: %s...", getTimeAndDate(), fastaPaths);
                     System.err.flush();
                 }
-                try (InputStream databaseInputStream = Files.newInputStream(Path.of(databasePath))) {
-                    virusesDatabase.loadFromInputStream(databaseInputStream);
-                }
+                virusesDatabase.loadFromFiles(fastaPaths, executor, THREAD_POOL_SIZE);
                 if (PCJ.myId() == 0) {
-                    System.err.printf(" takes %s%n", Duration.between(databaseStartTime, Instant.now()).toNanos() / 1e9);
+                    System.err.printf(" takes %s%n", Duration.between(databasesStartTime, Instant.now()).toNanos() / 1e9);
                 }
             }
 
             if (PCJ.myId() == 0) {
                 System.err.printf("[%s] Loaded %d viruses in %.6f: %s%n", getTimeAndDate(), virusesDatabase.count(),
                         Duration.between(databasesStartTime, Instant.now()).toNanos() / 1e9,
-                        Arrays.stream(virusesDatabase.getNames()).map(name -> name + "(" + virusesDatabase.getShingles(name).size() + ")").collect(Collectors.joining(", ")));
+                        Arrays.stream(virusesDatabase.getNames()).map(name -> name + "(" + virusesDatabase.getShinglesCount(name) + ")").collect(Collectors.joining(", ")));
+            }
+
+            if (PREFILTER_BITS > 0) {
+                Instant prefilterStartTime = Instant.now();
+                long prefilterSize = virusesDatabase.buildPrefilters(PREFILTER_BITS);
+                if (PCJ.myId() == 0) {
+                    System.err.printf("[%s] Built prefilter of %d KB in %.6f%n", getTimeAndDate(), prefilterSize / 1024,
+                            Duration.between(prefilterStartTime, Instant.now()).toNanos() / 1e9);
+                }
+            }
+
+            if (hitCacheDirectory != null && SHARDED_DATABASE) {
+                if (PCJ.myId() == 0) {
+                    System.err.printf("[%s] Hit cache is not used with sharded database%n", getTimeAndDate());
+                }
+            } else if (hitCacheDirectory != null) {
+                hitCache = new HitCache(hitCacheDirectory, virusesDatabase);
+                if (PCJ.myId() == 0) {
+                    System.err.printf("[%s] Using hit cache in '%s' for database: %s%n", getTimeAndDate(),
+                            hitCacheDirectory, hitCache.getDatabaseKey().replace('\t', ' '));
+                }
             }
         } catch (IOException e) {
             System.err.printf("[%s] Exception while reading database file by Thread-%d: %s. Exiting!%n",
@@ -208,24 +406,83 @@ public class PcjMain implements StartPoint {
             System.exit(1);
         }
 
+        if (SHARDED_DATABASE) {
+            shardFilesShingles = new ConcurrentHashMap<>();
+            shardGroupsShingles = new ConcurrentHashMap<>();
+            pendingLookups = new ConcurrentLinkedQueue<>();
+            shinglesReader = new ShinglesReader(virusesDatabase, executor, THREAD_POOL_SIZE, PROCESSING_BUFFER_KB * 1024,
+                    this::sendToShard);
+
+            PCJ.barrier();
+            reduceVirusSizes();
+            if (PCJ.myId() == 0) {
+                System.err.printf("[%s] Database is sharded across %d threads: %s%n", getTimeAndDate(), PCJ.threadCount(),
+                        Arrays.stream(virusesDatabase.getNames()).map(name -> name + "(" + virusesDatabase.getShinglesCount(name) + ")").collect(Collectors.joining(", ")));
+            }
+        } else {
+            shinglesReader = new ShinglesReader(virusesDatabase, executor, THREAD_POOL_SIZE, PROCESSING_BUFFER_KB * 1024);
+        }
+
+        if (PCJ.myId() == 0 && watchDirectory != null) {
+            startWatcher();
+        }
+
         PCJ.barrier();
 
+        nextFileChunk = claimFileChunk();
         while (true) {
-            String filename = PCJ.at(0, () -> {
-                Queue<String> filenames = PCJ.localGet(Vars.filenames);
-                return filenames.poll();
-            });
-
-            if (filename == null) {
+            long claimStart = System.nanoTime();
+            FileChunk fileChunk = nextFileChunk.get();
+            threadMetrics.communicationNanos += System.nanoTime() - claimStart;
+            if (fileChunk == null) {
                 break;
             }
+            if (NO_FILE_CHUNK_YET.equals(fileChunk)) {
+                try {
+                    Thread.sleep(SERVER_POLL_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                nextFileChunk = claimFileChunk();
+                continue;
+            }
 
-            processFile(filename);
+            nextFileChunk = null;
+            processFile(fileChunk);
+            prefetchFileChunk();
+        }
+        if (watcherThread != null) {
+            try {
+                watcherThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
         executor.shutdown();
         System.err.printf("[%s] Thread-%d finished processing all its files after %.9f%n",
                 getTimeAndDate(), PCJ.myId(), Duration.between(startTime, Instant.now()).toNanos() / 1e9);
 
+        if (metricsFile != null) {
+            gatherMetrics();
+        }
+
+        if (filesGroupPattern != null && SHARDED_DATABASE) {
+            PCJ.barrier();
+            if (PCJ.myId() == 0) {
+                for (String groupName : groupNames) {
+                    int[] intersectionSizes = sumFromShards(() -> countGroupShinglesInShard(groupName));
+                    System.out.println(formatResults(groupName, virusesDatabase.crosscheck(intersectionSizes)));
+                }
+            }
+        } else if (filesGroupPattern != null) {
+            reduceGroupsShingles();
+            if (PCJ.myId() == 0) {
+                new TreeMap<>(groupsShingles).forEach((groupName, shingles) ->
+                        System.out.println(crosscheckShingles(groupName, shingles)));
+            }
+        }
+
         PCJ.barrier();
         if (PCJ.myId() == 0) {
             long timeElapsed = Duration.between(startTime, Instant.now()).toNanos();
@@ -233,107 +490,478 @@ public class PcjMain implements StartPoint {
         }
     }
 
-    private void processFile(String filename) {
-        Instant fileStartTime = Instant.now();
-        System.err.printf("[%s] Thread-%d is processing '%s' file...%n",
-                getTimeAndDate(), PCJ.myId(), filename);
+    /**
+     * Pairs files of paired-end samples: a file whose name has {@code 1} (or {@code R1}) as the last
+     * {@code .}/{@code _}/{@code -} separated part before the extension, e.g. {@code sample_R1.fq.gz}, is paired
+     * with the file that has {@code 2} there, if both are given. Other files are samples on their own.
+     */
+    private static List<List<String>> pairMates(List<String> filenames) {
+        Set<String> remaining = new HashSet<>(filenames);
+        List<List<String>> samples = new ArrayList<>();
+        for (String filename : filenames) {
+            if (!remaining.contains(filename)) {
+                continue;
+            }
+            Matcher m = FIRST_MATE_PATTERN.matcher(filename);
+            String mate = m.matches() ? m.group(1) + m.group(2) + "2" + m.group(3) : null;
+            if (mate != null && remaining.contains(mate) && !mate.equals(filename)) {
+                samples.add(List.of(filename, mate));
+                remaining.remove(mate);
+            } else {
+                samples.add(List.of(filename));
+            }
+            remaining.remove(filename);
+        }
+        return samples;
+    }
+
+    private String getGroupName(String filename) {
+        Matcher m = filesGroupPattern.matcher(filename);
+        return m.find() ? m.group() : "";
+    }
+
+    /**
+     * Sends metrics of the thread (totals and then the files) to thread 0, that writes them all as TSV.
+     */
+    private void gatherMetrics() {
+        List<FileMetrics> metrics = new ArrayList<>();
+        metrics.add(threadMetrics);
+        metrics.addAll(filesMetrics);
+        PCJ.put(metrics.toArray(FileMetrics[]::new), 0, Vars.threadsMetrics, PCJ.myId());
+        if (PCJ.myId() != 0) {
+            return;
+        }
+        PCJ.waitFor(Vars.threadsMetrics, PCJ.threadCount());
+        FileMetrics totalMetrics = new FileMetrics(-1, "<total>");
+        List<String> lines = new ArrayList<>();
+        lines.add(FileMetrics.TSV_HEADER);
+        for (FileMetrics[] metricsOfThread : threadsMetrics) {
+            for (int i = 1; i < metricsOfThread.length; ++i) {
+                lines.add(metricsOfThread[i].toTsv());
+            }
+        }
+        for (FileMetrics[] metricsOfThread : threadsMetrics) {
+            lines.add(metricsOfThread[0].toTsv());
+            totalMetrics.add(metricsOfThread[0]);
+        }
+        lines.add(totalMetrics.toTsv());
         try {
-            Set<String> shingles = readShinglesFromFile(filename);
+            Files.write(metricsFile, lines);
+            System.err.printf("[%s] Metrics written to: %s%n", getTimeAndDate(), metricsFile);
+        } catch (IOException e) {
+            System.err.printf("[%s] Exception while writing metrics to '%s': %s%n", getTimeAndDate(), metricsFile, e);
+        }
+    }
 
-            String result = crosscheckShingles(filename, shingles);
-            PCJ.asyncAt(0, () -> System.out.println(result));
+    /**
+     * Reduces shingles of groups from all threads in a binary tree: thread {@code i} merges shingles
+     * from threads {@code 2i+1} and {@code 2i+2} into its own and sends them to thread {@code (i-1)/2}.
+     * Only thread 0 ends up with all the groups.
+     */
+    private void reduceGroupsShingles() {
+        int myId = PCJ.myId();
+        int childrenCount = (int) IntStream.of(2 * myId + 1, 2 * myId + 2)
+                .filter(childId -> childId < PCJ.threadCount())
+                .count();
+        if (childrenCount > 0) {
+            PCJ.waitFor(Vars.childrenGroupsShingles, childrenCount);
+            for (Map<String, BitSet> childGroupsShingles : childrenGroupsShingles) {
+                if (childGroupsShingles != null) {
+                    childGroupsShingles.forEach((groupName, shingles) ->
+                            groupsShingles.merge(groupName, shingles, PcjMain::mergeShingles));
+                }
+            }
+        }
+        if (myId > 0) {
+            PCJ.put(groupsShingles, (myId - 1) / 2, Vars.childrenGroupsShingles, (myId - 1) % 2);
+        }
+    }
 
-            if (filesGroupPattern != null) {
-                Matcher m = filesGroupPattern.matcher(filename);
-                String groupName = m.find() ? m.group() : "";
+    /**
+     * Thread 0 sums sizes of viruses from all the shards and sends the sums back to every thread.
+     */
+    private void reduceVirusSizes() {
+        if (PCJ.myId() == 0) {
+            int[] virusSizes = sumFromShards(() -> PCJ.<VirusesDatabase>localGet(Vars.virusesDatabase).getVirusSizes());
+            for (int threadId = 0; threadId < PCJ.threadCount(); ++threadId) {
+                PCJ.put(virusSizes, threadId, Vars.databaseVirusSizes);
+            }
+        }
+        PCJ.waitFor(Vars.databaseVirusSizes);
+        virusesDatabase.setVirusSizes(databaseVirusSizes);
+    }
+
+    private static int[] sumFromShards(AsyncTask<int[]> task) {
+        List<PcjFuture<int[]>> futures = IntStream.range(0, PCJ.threadCount())
+                .mapToObj(shard -> PCJ.asyncAt(shard, task))
+                .toList();
+        int[] sums = null;
+        for (PcjFuture<int[]> future : futures) {
+            int[] values = future.get();
+            if (sums == null) {
+                sums = values;
+            } else {
+                for (int i = 0; i < sums.length; ++i) {
+                    sums[i] += values[i];
+                }
+            }
+        }
+        return sums;
+    }
+
+    /**
+     * Sends batch of k-mers of the current file to the shard. The number of batches in flight is limited,
+     * so workers wait for the oldest ones to be processed.
+     */
+    private void sendToShard(int shard, KmerBatch batch) {
+        int fileIndex = currentFileIndex;
+        while (pendingLookups.size() >= THREAD_POOL_SIZE * 4) {
+            PcjFuture<Integer> pendingLookup = pendingLookups.poll();
+            if (pendingLookup != null) {
+                shardKmerHits.addAndGet(pendingLookup.get());
+            }
+        }
+        pendingLookups.add(PCJ.asyncAt(shard, () -> lookupInShard(fileIndex, batch)));
+    }
+
+    private void awaitLookups() {
+        for (PcjFuture<Integer> pendingLookup = pendingLookups.poll(); pendingLookup != null; pendingLookup = pendingLookups.poll()) {
+            shardKmerHits.addAndGet(pendingLookup.get());
+        }
+    }
 
-                Set<String> groupShingles = PCJ.at(0, () -> {
-                    Map<String, ShinglesAndCount> shinglesMap = PCJ.localGet(Vars.shinglesMap);
-                    ShinglesAndCount shinglesAndCount = shinglesMap.get(groupName);
-                    shinglesAndCount.addShingles(shingles);
+    /**
+     * @return number of the k-mers found in the shard
+     */
+    private static int lookupInShard(int fileIndex, KmerBatch batch) {
+        VirusesDatabase virusesDatabase = PCJ.localGet(Vars.virusesDatabase);
+        Map<Integer, BitSet> shardFilesShingles = PCJ.localGet(Vars.shardFilesShingles);
+        int[] shingleIds = batch.lookup(virusesDatabase);
+        BitSet shingles = shardFilesShingles.computeIfAbsent(fileIndex, index -> new BitSet());
+        synchronized (shingles) {
+            for (int shingleId : shingleIds) {
+                shingles.set(shingleId);
+            }
+        }
+        return shingleIds.length;
+    }
+
+    /**
+     * Counts common shingles of the file and viruses in the shard, and adds the shingles to the shingles
+     * of the group in the shard.
+     */
+    private static int[] countFileShinglesInShard(int fileIndex, String groupName) {
+        VirusesDatabase virusesDatabase = PCJ.localGet(Vars.virusesDatabase);
+        Map<Integer, BitSet> shardFilesShingles = PCJ.localGet(Vars.shardFilesShingles);
+        BitSet shingles = shardFilesShingles.remove(fileIndex);
+        if (shingles == null) {
+            shingles = new BitSet();
+        }
+        int[] intersectionSizes = virusesDatabase.countCommonShingles(shingles);
+        if (groupName != null) {
+            Map<String, BitSet> shardGroupsShingles = PCJ.localGet(Vars.shardGroupsShingles);
+            shardGroupsShingles.merge(groupName, shingles, PcjMain::mergeShingles);
+        }
+        return intersectionSizes;
+    }
+
+    private static int[] countGroupShinglesInShard(String groupName) {
+        VirusesDatabase virusesDatabase = PCJ.localGet(Vars.virusesDatabase);
+        Map<String, BitSet> shardGroupsShingles = PCJ.localGet(Vars.shardGroupsShingles);
+        return virusesDatabase.countCommonShingles(shardGroupsShingles.getOrDefault(groupName, new BitSet()));
+    }
+
+    private static BitSet mergeShingles(BitSet shingles, BitSet otherShingles) {
+        shingles.or(otherShingles);
+        return shingles;
+    }
+
+    /**
+     * Node 0 watches the directory in background and queues chunks of new files, until the stop file appears.
+     */
+    private void startWatcher() {
+        serverRunning = new AtomicBoolean(true);
+        System.err.printf("[%s] Watching '%s' directory for files to process (create '%s' file to stop)%n",
+                getTimeAndDate(), watchDirectory, DirectoryWatcher.STOP_FILENAME);
+        watcherThread = new Thread(() -> {
+            try {
+                new DirectoryWatcher(watchDirectory).watch(this::addWatchedFile);
+                System.err.printf("[%s] Stopped watching '%s' directory%n", getTimeAndDate(), watchDirectory);
+            } catch (IOException e) {
+                System.err.printf("[%s] Exception while watching '%s' directory: %s%n", getTimeAndDate(), watchDirectory, e);
+                e.printStackTrace(System.err);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                serverRunning.set(false);
+            }
+        }, "kite-watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    private void addWatchedFile(Path path) {
+        String filename = path.toString();
+        if (filesGroupPattern != null) {
+            groupNames.add(getGroupName(filename));
+        }
+        List<FileChunk> chunks = FileChunk.split(nextFileIndex++, List.of(filename), SPLIT_SIZE_MB * 1024L * 1024L);
+        System.err.printf("[%s] New file to process: %s%n", getTimeAndDate(), filename);
+        fileChunks.addAll(chunks);
+    }
+
+    /**
+     * In the server mode, {@link #NO_FILE_CHUNK_YET} is claimed when there is nothing to process at the moment,
+     * but new files can still come. The state is read before polling the queue, so no file queued before
+     * the server stopped is missed.
+     */
+    private static PcjFuture<FileChunk> claimFileChunk() {
+        return PCJ.asyncAt(0, () -> {
+            AtomicBoolean serverRunning = PCJ.localGet(Vars.serverRunning);
+            boolean running = serverRunning != null && serverRunning.get();
+            Queue<FileChunk> fileChunks = PCJ.localGet(Vars.fileChunks);
+            FileChunk fileChunk = fileChunks.poll();
+            return fileChunk == null && running ? NO_FILE_CHUNK_YET : fileChunk;
+        });
+    }
+
+    /**
+     * Claims the next file chunk asynchronously, unless it is already claimed. It is called as soon as the input
+     * of the current chunk is read, so the claim overlaps only with the crosscheck and merging of the results,
+     * and no chunk is held by a thread while other threads are idle.
+     */
+    private void prefetchFileChunk() {
+        if (nextFileChunk == null) {
+            nextFileChunk = claimFileChunk();
+        }
+    }
+
+    private void processFile(FileChunk fileChunk) {
+        Instant fileStartTime = Instant.now();
+        FileMetrics metrics = new FileMetrics(PCJ.myId(), fileChunk);
+        String filename = fileChunk.filename();
+        String sample = fileChunk.sample();
+        if (fileChunk.isWholeFile()) {
+            System.err.printf("[%s] Thread-%d is processing '%s' file...%n",
+                    getTimeAndDate(), PCJ.myId(), filename);
+        } else {
+            System.err.printf("[%s] Thread-%d is processing chunk %d/%d of '%s' file...%n",
+                    getTimeAndDate(), PCJ.myId(), fileChunk.index() + 1, fileChunk.count(), filename);
+        }
+        try {
+            BitSet shingles;
+            EarlyStop earlyStop = null;
+            if (fileChunk.isWholeFile()) {
+                if (!SHARDED_DATABASE && (EARLY_STOP_INDEX > 0 || EARLY_STOP_READS > 0)) {
+                    earlyStop = new EarlyStop(EARLY_STOP_INDEX, EARLY_STOP_READS, OUTPUT_VIRUS_COUNT);
+                }
+                shingles = readShinglesFromFileChunk(fileChunk, earlyStop, metrics);
+                prefetchFileChunk();
+            } else {
+                BitSet chunkShingles = readShinglesFromFileChunk(fileChunk, null, metrics);
+                prefetchFileChunk();
+                long communicationStart = System.nanoTime();
+                shingles = PCJ.at(0, () -> {
+                    Map<Integer, ShinglesAndCount> fileShinglesMap = PCJ.localGet(Vars.fileShinglesMap);
+                    ShinglesAndCount shinglesAndCount = fileShinglesMap.computeIfAbsent(fileChunk.fileIndex(),
+                            fileIndex -> new ShinglesAndCount(fileChunk.count()));
+                    shinglesAndCount.addShingles(chunkShingles);
                     if (shinglesAndCount.decrementCount() == 0) {
+                        fileShinglesMap.remove(fileChunk.fileIndex());
                         return shinglesAndCount.getShingles();
                     } else {
                         return null;
                     }
                 });
-                if (groupShingles != null) {
-                    String groupResult = crosscheckShingles(groupName, groupShingles);
-                    PCJ.asyncAt(0, () -> System.out.println(groupResult));
+                metrics.communicationNanos += System.nanoTime() - communicationStart;
+                if (shingles == null) {
+                    System.err.printf("[%s] Thread-%d finished processing chunk %d/%d of '%s' file after %.9f%n",
+                            getTimeAndDate(), PCJ.myId(), fileChunk.index() + 1, fileChunk.count(), filename,
+                            Duration.between(fileStartTime, Instant.now()).toNanos() / 1e9);
+                    return;
+                }
+            }
+
+            String result;
+            if (SHARDED_DATABASE) {
+                int fileIndex = fileChunk.fileIndex();
+                String groupName = filesGroupPattern != null ? getGroupName(sample) : null;
+                long communicationStart = System.nanoTime();
+                int[] intersectionSizes = sumFromShards(() -> countFileShinglesInShard(fileIndex, groupName));
+                long crosscheckStart = System.nanoTime();
+                metrics.communicationNanos += crosscheckStart - communicationStart;
+                result = formatResults(sample, virusesDatabase.crosscheck(intersectionSizes));
+                metrics.crosscheckNanos += System.nanoTime() - crosscheckStart;
+            } else {
+                long crosscheckStart = System.nanoTime();
+                result = crosscheckShingles(sample, shingles);
+                metrics.crosscheckNanos += System.nanoTime() - crosscheckStart;
+                if (earlyStop != null && earlyStop.isStopped()) {
+                    System.err.printf("[%s] Thread-%d stopped reading '%s' file after %d reads (%.2f%% of the file): %s%n",
+                            getTimeAndDate(), PCJ.myId(), filename, metrics.reads,
+                            earlyStop.getConsumedFraction() * 100, earlyStop.getReason());
+                    result = String.format("%s\tpartial=%.4f", result, earlyStop.getConsumedFraction());
+                }
+                if (filesGroupPattern != null) {
+                    groupsShingles.merge(getGroupName(sample), shingles, PcjMain::mergeShingles);
+                }
+                if (hitCache != null && (earlyStop == null || !earlyStop.isStopped())) {
+                    storeInHitCache(sample, shingles);
                 }
             }
+            String fileResult = result;
+            PCJ.asyncAt(0, () -> System.out.println(fileResult));
 
-            Instant.now();
             System.err.printf("[%s] Thread-%d finished processing '%s' file after %.9f%n",
-                    getTimeAndDate(), PCJ.myId(), filename, Duration.between(fileStartTime, Instant.now()).toNanos() / 1e9);
+                    getTimeAndDate(), PCJ.myId(), sample, Duration.between(fileStartTime, Instant.now()).toNanos() / 1e9);
         } catch (Exception e) {
             System.err.printf("[%s] Exception after %.9f while processing '%s' by Thread-%d: %s%n",
                     getTimeAndDate(),
                     Duration.between(fileStartTime, Instant.now()).toNanos() / 1e9,
                     filename, PCJ.myId(), e);
             e.printStackTrace(System.err);
+        } finally {
+            metrics.finish();
+            threadMetrics.add(metrics);
+            filesMetrics.add(metrics);
         }
     }
 
 
-    private Set<String> readShinglesFromFile(String filename) throws IOException, ExecutionException, InterruptedException {
-        List<Future<?>> shinglesFutures = new ArrayList<>();
-        try (BufferedReader input = new BufferedReader(
-                new InputStreamReader(
-                        new GZIPInputStream(
-                                new FileInputStream(filename), GZIP_BUFFER_KB * 1024)), READER_BUFFER_KB * 1024)
-        ) {
-            Set<String> shingles = ConcurrentHashMap.newKeySet();
-
-            input.readLine(); // skip line
-            StringBuilder sb = new StringBuilder((PROCESSING_BUFFER_KB + 1) * 1024);
-            while (true) {
-                String line = input.readLine();
-                if (line != null) {
-                    sb.append(line);
-                }
-                if (line == null || sb.length() >= PROCESSING_BUFFER_KB * 1024) {
-                    StringBuilder _sb = sb;
-                    shinglesFutures.add(executor.submit(() -> {
-                        Set<String> localShingles = new HashSet<>();
-                        for (int index = 0; index <= _sb.length() - SHINGLES_LENGTH[SHINGLES_LENGTH.length - 1]; ++index) {
-                            for (int shingleLength : SHINGLES_LENGTH) {
-                                String shingle = _sb.substring(index, index + shingleLength);
-
-                                if (virusesDatabase.hasShingle(shingle)) {
-                                    localShingles.add(shingle);
-                                }
-                            }
-                        }
+    /**
+     * @return cached shingles of the sample, or {@code null} if the sample has to be read
+     */
+    private BitSet loadFromHitCache(String sample) {
+        try {
+            return hitCache.load(sample);
+        } catch (IOException e) {
+            System.err.printf("[%s] Exception while loading '%s' file from hit cache by Thread-%d: %s%n",
+                    getTimeAndDate(), sample, PCJ.myId(), e);
+            return null;
+        }
+    }
 
-                        shingles.addAll(localShingles);
-                    }));
-                    if (line == null) {
-                        break;
-                    }
-                    String lastChars = sb.substring(sb.length() - SHINGLES_LENGTH[SHINGLES_LENGTH.length - 1] + 1);
-                    sb = new StringBuilder((PROCESSING_BUFFER_KB + 1) * 1024);
-                    sb.append(lastChars);
-                }
-                input.readLine(); // skip line
-                input.readLine(); // skip line
-                input.readLine(); // skip line
+    private void storeInHitCache(String sample, BitSet shingles) {
+        try {
+            if (!hitCache.contains(sample)) {
+                hitCache.store(sample, shingles);
             }
+        } catch (IOException e) {
+            System.err.printf("[%s] Exception while storing '%s' file in hit cache by Thread-%d: %s%n",
+                    getTimeAndDate(), sample, PCJ.myId(), e);
+        }
+    }
 
-            for (Future<?> f : shinglesFutures) {
-                f.get();
+    /**
+     * When the sample is in the hit cache, the cached shingles are returned for its first chunk,
+     * and no shingles for the other chunks. Uncompressed files are read memory-mapped.
+     */
+    private BitSet readShinglesFromFileChunk(FileChunk fileChunk, EarlyStop earlyStop, FileMetrics metrics)
+            throws IOException, ExecutionException, InterruptedException {
+        if (hitCache != null) {
+            BitSet cachedShingles = loadFromHitCache(fileChunk.sample());
+            if (cachedShingles != null && fileChunk.index() > 0) {
+                return new BitSet();
+            } else if (cachedShingles != null) {
+                System.err.printf("[%s] Thread-%d loaded '%s' file from hit cache%n",
+                        getTimeAndDate(), PCJ.myId(), fileChunk.sample());
+                metrics.shingles += cachedShingles.cardinality();
+                return cachedShingles;
+            }
+        }
+        currentFileIndex = fileChunk.fileIndex();
+        Path path = Path.of(fileChunk.filename());
+        try {
+            FastqFormat format = FastqFormat.of(path);
+            if (format == FastqFormat.PLAIN) {
+                return readShinglesFromMappedFile(fileChunk, earlyStop, metrics);
+            }
+            return fileChunk.start() == 0 && fileChunk.end() >= Files.size(path)
+                    ? readShinglesFromFile(fileChunk.filename(), earlyStop, metrics)
+                    : readShinglesFromChunk(fileChunk, format, metrics);
+        } finally {
+            if (SHARDED_DATABASE) {
+                long communicationStart = System.nanoTime();
+                awaitLookups();
+                metrics.communicationNanos += System.nanoTime() - communicationStart;
+                metrics.kmerHits += shardKmerHits.getAndSet(0);
             }
+        }
+    }
 
+    private BitSet readShinglesFromFile(String filename, EarlyStop earlyStop, FileMetrics metrics)
+            throws IOException, ExecutionException, InterruptedException {
+        FileInputStream fileInput = new FileInputStream(filename);
+        try (InputStream input = new BufferedInputStream(openFastqFile(fileInput), READER_BUFFER_KB * 1024)) {
+            BitSet shingles = shinglesReader.readShingles(input, false, () -> Long.MAX_VALUE, earlyStop, metrics);
+            FileChannel channel = fileInput.getChannel();
+            metrics.compressedBytes += channel.position();
+            if (earlyStop != null && earlyStop.isStopped()) {
+                earlyStop.setConsumedFraction(Math.min(1.0, (double) channel.position() / Math.max(1, channel.size())));
+            }
             return shingles;
-        } catch (Exception e) {
-            shinglesFutures.forEach(f -> f.cancel(false));
+        }
+    }
+
+    private BitSet readShinglesFromChunk(FileChunk fileChunk, FastqFormat format, FileMetrics metrics)
+            throws IOException, ExecutionException, InterruptedException {
+        if (format != FastqFormat.BGZF) {
+            throw new IOException("Cannot read chunk of " + format + " file: " + fileChunk.filename());
+        }
+        try (FileChannel channel = FileChannel.open(Path.of(fileChunk.filename()))) {
+            long size = channel.size();
+            boolean skipPartialRecord = fileChunk.start() > 0;
+            long blockStart = skipPartialRecord ? BgzfInputStream.nextBlockStart(channel, fileChunk.start()) : 0;
+            long blockLimit = fileChunk.end() < size ? BgzfInputStream.nextBlockStart(channel, fileChunk.end()) : Long.MAX_VALUE;
+            channel.position(blockStart);
+            try (BgzfInputStream bgzfInput = new BgzfInputStream(
+                    new BufferedInputStream(Channels.newInputStream(channel), GZIP_BUFFER_KB * 1024),
+                    executor, THREAD_POOL_SIZE * 2, blockLimit - blockStart);
+                 InputStream input = new BufferedInputStream(bgzfInput, READER_BUFFER_KB * 1024)) {
+                BitSet shingles = shinglesReader.readShingles(input, skipPartialRecord, bgzfInput::inflatedLimit,
+                        null, metrics);
+                metrics.compressedBytes += channel.position() - blockStart;
+                return shingles;
+            }
+        }
+    }
+
+    /**
+     * Reads uncompressed file (or its chunk) without copying: the workers process the memory-mapped file.
+     */
+    private BitSet readShinglesFromMappedFile(FileChunk fileChunk, EarlyStop earlyStop, FileMetrics metrics)
+            throws IOException, ExecutionException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(Path.of(fileChunk.filename()))) {
+            long size = channel.size();
+            long end = fileChunk.end() < size ? fileChunk.end() : size;
+            return shinglesReader.readShingles(channel, fileChunk.start(), end, fileChunk.start() > 0,
+                    earlyStop, metrics);
+        }
+    }
+
+    private InputStream openFastqFile(FileInputStream file) throws IOException {
+        PushbackInputStream fileInput = new PushbackInputStream(file, FastqFormat.HEADER_LENGTH);
+        try {
+            byte[] header = fileInput.readNBytes(FastqFormat.HEADER_LENGTH);
+            fileInput.unread(header);
+            return switch (FastqFormat.of(header, header.length)) {
+                case BGZF -> new BgzfInputStream(new BufferedInputStream(fileInput, GZIP_BUFFER_KB * 1024),
+                        executor, THREAD_POOL_SIZE * 2);
+                case GZIP -> new GZIPInputStream(fileInput, GZIP_BUFFER_KB * 1024);
+                case PLAIN -> fileInput;
+            };
+        } catch (IOException e) {
+            fileInput.close();
             throw e;
         }
     }
 
-    private String crosscheckShingles(String filename, Set<String> shingles) {
+    private String crosscheckShingles(String filename, BitSet shingles) {
+        return formatResults(filename, virusesDatabase.crosscheck(shingles));
+    }
+
+    private String formatResults(String filename, PriorityQueue<VirusesDatabase.CrosscheckResult> resultsPQ) {
         StringBuilder result = new StringBuilder();
-        PriorityQueue<VirusesDatabase.CrosscheckResult> resultsPQ = virusesDatabase.crosscheck(shingles);
         for (int i = 0; (OUTPUT_VIRUS_COUNT <= 0 || i < OUTPUT_VIRUS_COUNT) && !resultsPQ.isEmpty(); ++i) {
             VirusesDatabase.CrosscheckResult max = resultsPQ.poll();
             if (max == null) {
@@ -349,19 +977,19 @@ public class PcjMain implements StartPoint {
     }
 
     static class ShinglesAndCount implements Serializable {
-        private final Set<String> shingles;
+        private final BitSet shingles;
         private final AtomicInteger count;
 
         public ShinglesAndCount(int count) {
-            this.shingles = ConcurrentHashMap.newKeySet();
+            this.shingles = new BitSet();
             this.count = new AtomicInteger(count);
         }
 
-        public void addShingles(Collection<String> newShingles) {
-            shingles.addAll(newShingles);
+        public synchronized void addShingles(BitSet newShingles) {
+            shingles.or(newShingles);
         }
 
-        public Set<String> getShingles() {
+        public synchronized BitSet getShingles() {
             return shingles;
         }
 
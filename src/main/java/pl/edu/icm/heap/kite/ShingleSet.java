@@ -0,0 +1,66 @@
+package pl.edu.icm.heap.kite;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Set of shingles (k-mers) of all configured lengths. Shingles of each length are kept in a separate
+ * {@link KmerSet}, addressed by the index of the length in the sorted {@code shinglesLength} array.
+ */
+public class ShingleSet implements Serializable {
+    private final int[] shinglesLength;
+    private final KmerSet[] kmers;
+
+    public ShingleSet(int[] shinglesLength) {
+        this.shinglesLength = shinglesLength;
+        this.kmers = Arrays.stream(shinglesLength)
+                .mapToObj(shingleLength -> new KmerSet(Kmers.wordCount(shingleLength)))
+                .toArray(KmerSet[]::new);
+    }
+
+    public ShingleSet(int[] shinglesLength, int expectedSize) {
+        this.shinglesLength = shinglesLength;
+        this.kmers = Arrays.stream(shinglesLength)
+                .mapToObj(shingleLength -> new KmerSet(Kmers.wordCount(shingleLength), expectedSize))
+                .toArray(KmerSet[]::new);
+    }
+
+    ShingleSet(int[] shinglesLength, KmerSet[] kmers) {
+        this.shinglesLength = shinglesLength;
+        this.kmers = kmers;
+    }
+
+    public int[] getShinglesLength() {
+        return shinglesLength;
+    }
+
+    public KmerSet getKmers(int lengthIndex) {
+        return kmers[lengthIndex];
+    }
+
+    public boolean add(int lengthIndex, long[] kmer) {
+        return kmers[lengthIndex].add(kmer);
+    }
+
+    public int addAndGetIndex(int lengthIndex, long[] kmer) {
+        return kmers[lengthIndex].addAndGetIndex(kmer, 0);
+    }
+
+    public int indexOf(int lengthIndex, long[] kmer) {
+        return kmers[lengthIndex].indexOf(kmer);
+    }
+
+    public long size() {
+        long size = 0;
+        for (KmerSet kmerSet : kmers) {
+            size += kmerSet.size();
+        }
+        return size;
+    }
+
+    public void trimToSize() {
+        for (KmerSet kmerSet : kmers) {
+            kmerSet.trimToSize();
+        }
+    }
+}
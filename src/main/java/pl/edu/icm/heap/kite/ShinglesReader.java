@@ -0,0 +1,486 @@
+package pl.edu.icm.heap.kite;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded producer/consumer pipeline that collects ids of database shingles found in FASTQ input.
+ * <p>
+ * The calling thread reads the input into chunks cut at record boundaries and submits them to the executor.
+ * At most {@code maxChunksInFlight} chunks are submitted and not yet processed, so reading blocks when lookup
+ * cannot keep up. Chunk buffers are reused, and each worker task borrows one of the per-worker hit sets,
+ * that are merged when the whole input is processed.
+ * <p>
+ * With {@link EarlyStop}, workers also count found shingles per virus as they arrive (each shingle once, using
+ * a shared set of found shingles), and reading stops when the condition holds for the partial counts.
+ * The counts of running workers are read without synchronization, so the condition is checked on slightly
+ * stale counts; the returned set is exact for the records that were read.
+ * <p>
+ * For sharded database, workers do not look the shingles up, but collect them into batches per shard,
+ * which are passed to the {@link KmerBatchSender}; the returned set is then empty.
+ */
+public class ShinglesReader {
+    private static final int BATCH_SIZE = 1024;
+    private static final long MAPPED_WINDOW_SIZE = 256L << 20;
+    private static final long MAPPED_WINDOW_OVERLAP = 64L << 20;
+
+    private final VirusesDatabase virusesDatabase;
+    private final KmerBatchSender batchSender;
+    private final ExecutorService executor;
+    private final int bufferSize;
+    private final int maxChunksInFlight;
+    private final Semaphore chunksInFlight;
+    private final Queue<byte[]> buffers;
+    private final Queue<Worker> idleWorkers;
+    private final List<Worker> workers;
+    private long mappedWindowSize;
+    private long mappedWindowOverlap;
+    private AtomicLongArray foundShingles;
+
+    public ShinglesReader(VirusesDatabase virusesDatabase, ExecutorService executor, int parallelism, int bufferSize) {
+        this(virusesDatabase, executor, parallelism, bufferSize, null);
+    }
+
+    public ShinglesReader(VirusesDatabase virusesDatabase, ExecutorService executor, int parallelism, int bufferSize,
+                          KmerBatchSender batchSender) {
+        this.virusesDatabase = virusesDatabase;
+        this.batchSender = batchSender;
+        this.executor = executor;
+        this.bufferSize = bufferSize;
+        this.maxChunksInFlight = Math.max(1, parallelism) * 2;
+        this.chunksInFlight = new Semaphore(maxChunksInFlight);
+        this.buffers = new ConcurrentLinkedQueue<>();
+        this.idleWorkers = new ConcurrentLinkedQueue<>();
+        this.workers = new ArrayList<>();
+        this.mappedWindowSize = MAPPED_WINDOW_SIZE;
+        this.mappedWindowOverlap = MAPPED_WINDOW_OVERLAP;
+    }
+
+    /**
+     * Sets the size of memory-mapped windows of uncompressed files, and the overlap of the windows
+     * that limits the length of a record.
+     */
+    void setMappedWindow(long windowSize, long overlap) {
+        this.mappedWindowSize = windowSize;
+        this.mappedWindowOverlap = overlap;
+    }
+
+    public BitSet readShingles(InputStream input) throws IOException, ExecutionException, InterruptedException {
+        return readShingles(input, false, () -> Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads records of a file chunk. When the input starts in the middle of a file, bytes up to the first
+     * record start that follows a line break are skipped, as they belong to the previous chunk.
+     * Reading stops at the first record start after {@code end} offset, as the record belongs to the next chunk.
+     *
+     * @param end offset in the input, or {@link Long#MAX_VALUE} if not known (yet)
+     */
+    public BitSet readShingles(InputStream input, boolean skipPartialRecord, LongSupplier end)
+            throws IOException, ExecutionException, InterruptedException {
+        return readShingles(input, skipPartialRecord, end, null, new FileMetrics(-1, ""));
+    }
+
+    /**
+     * Reads records until the end of input, or until the {@code earlyStop} condition holds.
+     *
+     * @param earlyStop condition checked after every chunk, or {@code null} to read the whole input
+     * @param metrics   metrics of the file, that the counters and times of reading are added to
+     */
+    public synchronized BitSet readShingles(InputStream input, boolean skipPartialRecord, LongSupplier end,
+                                            EarlyStop earlyStop, FileMetrics metrics)
+            throws IOException, ExecutionException, InterruptedException {
+        boolean counting = startReading(earlyStop);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        try {
+            byte[] buffer = takeBuffer(bufferSize);
+            long bufferOffset = 0;
+            int length = 0;
+            boolean skipping = skipPartialRecord;
+            while (failure.get() == null) {
+                long readStart = System.nanoTime();
+                int read = input.readNBytes(buffer, length, buffer.length - length);
+                metrics.readNanos += System.nanoTime() - readStart;
+                metrics.inflatedBytes += read;
+                length += read;
+                boolean endOfInput = length < buffer.length;
+                ByteBuffer view = ByteBuffer.wrap(buffer);
+
+                if (skipping) {
+                    int recordStart = FastqParser.nextRecordStart(view, 0, length);
+                    if (recordStart < 0 && !endOfInput) {
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                        continue;
+                    }
+                    int skipped = recordStart < 0 ? length : recordStart;
+                    System.arraycopy(buffer, skipped, buffer, 0, length - skipped);
+                    bufferOffset += skipped;
+                    length -= skipped;
+                    skipping = false;
+                    continue;
+                }
+
+                int recordsEnd = -1;
+                boolean lastChunk = endOfInput;
+                long rangeEnd = end.getAsLong();
+                if (rangeEnd - bufferOffset < length) {
+                    recordsEnd = rangeEnd < bufferOffset ? 0
+                            : FastqParser.nextRecordStart(view, (int) (rangeEnd - bufferOffset), length);
+                    lastChunk |= recordsEnd >= 0;
+                }
+                if (recordsEnd < 0) {
+                    recordsEnd = endOfInput ? length : FastqParser.lastRecordStart(view, 0, length);
+                }
+                if (recordsEnd <= 0 && !lastChunk) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2); // record longer than buffer
+                    continue;
+                }
+
+                byte[] nextBuffer = null;
+                if (!lastChunk) {
+                    nextBuffer = takeBuffer(length - recordsEnd);
+                    System.arraycopy(buffer, recordsEnd, nextBuffer, 0, length - recordsEnd);
+                    length -= recordsEnd;
+                    bufferOffset += recordsEnd;
+                }
+
+                byte[] submittedBuffer = buffer;
+                submit(ByteBuffer.wrap(buffer), 0, recordsEnd, () -> buffers.add(submittedBuffer), failure, metrics);
+
+                if (lastChunk || (counting && checkEarlyStop(earlyStop))) {
+                    break;
+                }
+                buffer = nextBuffer;
+            }
+        } finally {
+            chunksInFlight.acquire(maxChunksInFlight);
+            chunksInFlight.release(maxChunksInFlight);
+        }
+        return finishReading(failure, metrics);
+    }
+
+    /**
+     * Reads records of the {@code [start, end)} range of uncompressed FASTQ file, with the same rules of range
+     * boundaries as for the chunk of input stream. The file is memory-mapped in windows and the workers process
+     * slices of the mapped windows, so the data is never copied. A window is cut after the first record
+     * that starts after the window size, so the record has to end within the window overlap.
+     */
+    public synchronized BitSet readShingles(FileChannel channel, long start, long end, boolean skipPartialRecord,
+                                            EarlyStop earlyStop, FileMetrics metrics)
+            throws IOException, ExecutionException, InterruptedException {
+        boolean counting = startReading(earlyStop);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        long size = channel.size();
+        long position = start;
+        try {
+            boolean lastWindow = position >= size;
+            while (!lastWindow && failure.get() == null) {
+                long mapStart = System.nanoTime();
+                long mappedEnd = Math.min(size, position + mappedWindowSize + mappedWindowOverlap);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, mappedEnd - position);
+                metrics.readNanos += System.nanoTime() - mapStart;
+                int length = window.limit();
+
+                int from = 0;
+                if (skipPartialRecord) {
+                    from = FastqParser.nextRecordStart(window, 0, length);
+                    if (from < 0 && mappedEnd < size) {
+                        throw new IOException("No FASTQ record found after offset " + position);
+                    }
+                    from = from < 0 ? length : from;
+                    skipPartialRecord = false;
+                }
+
+                long boundary = mappedEnd == size ? end : Math.min(end, position + mappedWindowSize);
+                lastWindow = boundary == end;
+                int recordsEnd = length;
+                if (boundary - position < length) {
+                    recordsEnd = boundary < position + from ? from
+                            : FastqParser.nextRecordStart(window, (int) (boundary - position), length);
+                    if (recordsEnd < 0 && mappedEnd < size) {
+                        throw new IOException("FASTQ record longer than " + mappedWindowOverlap + " bytes at offset " + boundary);
+                    }
+                    recordsEnd = recordsEnd < 0 ? length : recordsEnd;
+                }
+                metrics.inflatedBytes += recordsEnd - from;
+                metrics.compressedBytes += recordsEnd - from;
+
+                while (from < recordsEnd) {
+                    int to = from + bufferSize < recordsEnd
+                            ? FastqParser.nextRecordStart(window, from + bufferSize, recordsEnd)
+                            : -1;
+                    to = to < 0 ? recordsEnd : to;
+                    submit(window, from, to, () -> {
+                    }, failure, metrics);
+                    from = to;
+                    if (counting && checkEarlyStop(earlyStop)) {
+                        earlyStop.setConsumedFraction((double) (position + to) / size);
+                        lastWindow = true;
+                        break;
+                    }
+                }
+                position += recordsEnd;
+            }
+        } finally {
+            chunksInFlight.acquire(maxChunksInFlight);
+            chunksInFlight.release(maxChunksInFlight);
+        }
+        return finishReading(failure, metrics);
+    }
+
+    /**
+     * @return if found shingles are counted for the early stop condition
+     */
+    private boolean startReading(EarlyStop earlyStop) {
+        boolean counting = earlyStop != null && earlyStop.isEnabled() && batchSender == null;
+        foundShingles = counting ? new AtomicLongArray((virusesDatabase.shinglesCount() + 63) / 64) : null;
+        for (Worker worker : workers) {
+            worker.clear();
+        }
+        return counting;
+    }
+
+    private BitSet finishReading(AtomicReference<Throwable> failure, FileMetrics metrics) throws ExecutionException {
+        if (failure.get() != null) {
+            throw new ExecutionException(failure.get());
+        }
+        for (Worker worker : workers) {
+            worker.flushBatches();
+        }
+
+        BitSet shingles = new BitSet(virusesDatabase.shinglesCount());
+        for (Worker worker : workers) {
+            shingles.or(worker.shingles);
+            worker.addMetrics(metrics);
+        }
+        metrics.shingles += shingles.cardinality();
+        return shingles;
+    }
+
+    private boolean checkEarlyStop(EarlyStop earlyStop) {
+        int[] intersectionSizes = new int[virusesDatabase.count()];
+        long reads = 0;
+        synchronized (workers) {
+            for (Worker worker : workers) {
+                for (int virusId = 0; virusId < intersectionSizes.length; ++virusId) {
+                    intersectionSizes[virusId] += worker.intersectionSizes[virusId];
+                }
+                reads += worker.reads;
+            }
+        }
+        return earlyStop.check(virusesDatabase, intersectionSizes, reads);
+    }
+
+    /**
+     * @return if the shingle was not found before by any worker
+     */
+    private boolean markFound(int shingleId) {
+        int index = shingleId >>> 6;
+        long bit = 1L << shingleId;
+        long word = foundShingles.get(index);
+        while ((word & bit) == 0) {
+            long witness = foundShingles.compareAndExchange(index, word, word | bit);
+            if (witness == word) {
+                return true;
+            }
+            word = witness;
+        }
+        return false;
+    }
+
+    /**
+     * Waits for a free slot and submits processing of records in {@code [from, to)} range of the buffer.
+     *
+     * @param release called when the buffer is no longer used
+     */
+    private void submit(ByteBuffer buffer, int from, int to, Runnable release, AtomicReference<Throwable> failure,
+                        FileMetrics metrics) throws InterruptedException {
+        long waitStart = System.nanoTime();
+        chunksInFlight.acquire();
+        metrics.waitNanos += System.nanoTime() - waitStart;
+        try {
+            executor.execute(() -> {
+                try {
+                    Worker worker = takeWorker();
+                    try {
+                        worker.process(buffer, from, to);
+                    } finally {
+                        idleWorkers.add(worker);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    release.run();
+                    chunksInFlight.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            release.run();
+            chunksInFlight.release();
+            throw e;
+        }
+        if (executor instanceof ThreadPoolExecutor threadPoolExecutor) {
+            metrics.maxQueueDepth = Math.max(metrics.maxQueueDepth, threadPoolExecutor.getQueue().size());
+        }
+    }
+
+    private byte[] takeBuffer(int minSize) {
+        byte[] buffer = buffers.poll();
+        if (buffer == null || buffer.length < minSize) {
+            buffer = new byte[Math.max(bufferSize, minSize)];
+        }
+        return buffer;
+    }
+
+    private Worker takeWorker() {
+        Worker worker = idleWorkers.poll();
+        if (worker == null) {
+            worker = new Worker();
+            synchronized (workers) {
+                workers.add(worker);
+            }
+        }
+        return worker;
+    }
+
+    private class Worker {
+        private final BitSet shingles;
+        private final int[] intersectionSizes;
+        private long reads;
+        private long bases;
+        private long kmers;
+        private long kmerHits;
+        private long parseNanos;
+        private long lookupNanos;
+        private final KmerScanner scanner;
+        private final KmerScanner.KmerConsumer shingleConsumer;
+        private final KmerBatch[] batches;
+        private final FastqParser.SequenceConsumer sequenceCollector;
+        private int[] sequenceBounds;
+        private int sequenceCount;
+
+        Worker() {
+            shingles = new BitSet(virusesDatabase.shinglesCount());
+            intersectionSizes = new int[virusesDatabase.count()];
+            scanner = new KmerScanner(virusesDatabase.getShinglesLength());
+            sequenceBounds = new int[2 * 256];
+            sequenceCollector = (buffer, sequenceFrom, sequenceTo) -> {
+                if (2 * sequenceCount + 2 > sequenceBounds.length) {
+                    sequenceBounds = Arrays.copyOf(sequenceBounds, sequenceBounds.length * 2);
+                }
+                sequenceBounds[2 * sequenceCount] = sequenceFrom;
+                sequenceBounds[2 * sequenceCount + 1] = sequenceTo;
+                ++sequenceCount;
+            };
+            if (batchSender == null) {
+                batches = null;
+                shingleConsumer = (lengthIndex, kmer) -> {
+                    ++kmers;
+                    int shingleId = virusesDatabase.getShingleId(lengthIndex, kmer);
+                    if (shingleId >= 0) {
+                        ++kmerHits;
+                    }
+                    if (shingleId >= 0 && !shingles.get(shingleId)) {
+                        shingles.set(shingleId);
+                        if (foundShingles != null && markFound(shingleId)) {
+                            virusesDatabase.countCommonShingle(shingleId, intersectionSizes);
+                        }
+                    }
+                };
+            } else {
+                batches = new KmerBatch[virusesDatabase.getShardCount()];
+                shingleConsumer = (lengthIndex, kmer) -> {
+                    int shard = virusesDatabase.getShard(lengthIndex, kmer);
+                    if (shard < 0) {
+                        return;
+                    }
+                    ++kmers;
+                    if (batches[shard] == null) {
+                        batches[shard] = new KmerBatch(virusesDatabase.getShinglesLength(), BATCH_SIZE);
+                    }
+                    if (batches[shard].add(lengthIndex, kmer)) {
+                        batchSender.send(shard, batches[shard]);
+                        batches[shard] = null;
+                    }
+                };
+            }
+        }
+
+        void clear() {
+            shingles.clear();
+            Arrays.fill(intersectionSizes, 0);
+            reads = 0;
+            bases = 0;
+            kmers = 0;
+            kmerHits = 0;
+            parseNanos = 0;
+            lookupNanos = 0;
+            if (batches != null) {
+                Arrays.fill(batches, null); // not sent after a failure of the previous file
+            }
+        }
+
+        void addMetrics(FileMetrics metrics) {
+            metrics.reads += reads;
+            metrics.bases += bases;
+            metrics.kmers += kmers;
+            metrics.kmerHits += kmerHits;
+            metrics.parseNanos += parseNanos;
+            metrics.lookupNanos += lookupNanos;
+        }
+
+        void flushBatches() {
+            if (batches == null) {
+                return;
+            }
+            for (int shard = 0; shard < batches.length; ++shard) {
+                if (batches[shard] != null) {
+                    batchSender.send(shard, batches[shard]);
+                    batches[shard] = null;
+                }
+            }
+        }
+
+        /**
+         * Parses all the records of the range first and then scans their sequences,
+         * so parsing and lookup are timed once per range.
+         */
+        void process(ByteBuffer buffer, int from, int to) {
+            long parseStart = System.nanoTime();
+            sequenceCount = 0;
+            FastqParser.forEachSequence(buffer, from, to, sequenceCollector);
+            long scanStart = System.nanoTime();
+            parseNanos += scanStart - parseStart;
+            for (int i = 0; i < sequenceCount; ++i) {
+                int sequenceFrom = sequenceBounds[2 * i];
+                int sequenceTo = sequenceBounds[2 * i + 1];
+                ++reads;
+                bases += sequenceTo - sequenceFrom;
+                scanner.reset();
+                scanner.scan(buffer, sequenceFrom, sequenceTo, shingleConsumer);
+            }
+            lookupNanos += System.nanoTime() - scanStart;
+        }
+    }
+
+    @FunctionalInterface
+    public interface KmerBatchSender {
+        void send(int shard, KmerBatch batch);
+    }
+}
@@ -10,6 +10,15 @@ public class Utils {
         return str.chars().allMatch(c -> c >= '0' && c <= '9');
     }
 
+    public static int[] parseShinglesLength(String shinglesLength) {
+        return Arrays.stream(shinglesLength.split(","))
+                .map(String::strip)
+                .filter(Utils::isNonNegativeInteger)
+                .mapToInt(Integer::parseInt)
+                .sorted()
+                .toArray();
+    }
+
     public static String shinglesLengthToString(int[] shinglesLength) {
         if (shinglesLength == null || shinglesLength.length == 0) {
             return "-";
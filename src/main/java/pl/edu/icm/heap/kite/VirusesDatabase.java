@@ -4,31 +4,105 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
 import java.io.Serial;
 import java.io.Serializable;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.stream.IntStream;
 
+/**
+ * Database of viruses with shingles (k-mers) of configured lengths.
+ * <p>
+ * With sketch scale {@code S > 1} the database is a FracMinHash sketch: only k-mers whose hash falls below
+ * {@code 2^64 / S} are kept, both in the database and in the samples. The index of the virus calculated from
+ * the sketches is then an estimate of the index calculated from all k-mers.
+ * <p>
+ * Database can also be a shard: it keeps only the k-mers that {@link #getShard} assigns to it,
+ * so shingle ids and virus sizes are local to the shard.
+ */
 public class VirusesDatabase implements Serializable {
     private final int[] shinglesLength;
+    private final long sketchScale;
+    private final long sketchThreshold;
+    private final int shardId;
+    private final int shardCount;
     private final List<String> names;
-    private final Map<String, Set<String>> viruses;
-    transient private final Set<String> superset;
+    private final List<int[][]> viruses;
+    private final ShingleSet superset;
+    transient private final boolean mapped;
+    transient private int[] lengthOffsets;
+    transient private IntBuffer virusSizes;
+    transient private IntBuffer postingOffsets;
+    transient private IntBuffer postingViruses;
+    transient private BloomFilter[] prefilters;
 
     public VirusesDatabase(int[] shinglesLength) {
+        this(shinglesLength, 1);
+    }
+
+    public VirusesDatabase(int[] shinglesLength, long sketchScale) {
+        this(shinglesLength, sketchScale, 0, 1);
+    }
+
+    public VirusesDatabase(int[] shinglesLength, long sketchScale, int shardId, int shardCount) {
         this.shinglesLength = shinglesLength;
+        this.sketchScale = Math.max(1, sketchScale);
+        this.sketchThreshold = Kmers.sketchThreshold(sketchScale);
+        this.shardId = shardId;
+        this.shardCount = Math.max(1, shardCount);
 
         names = new ArrayList<>();
-        viruses = new HashMap<>();
-        superset = new HashSet<>();
+        viruses = new ArrayList<>();
+        superset = new ShingleSet(shinglesLength);
+        mapped = false;
+        buildIndex();
     }
 
     public VirusesDatabase(VirusesDatabase that) {
         this.shinglesLength = that.shinglesLength;
+        this.sketchScale = that.sketchScale;
+        this.sketchThreshold = that.sketchThreshold;
+        this.shardId = that.shardId;
+        this.shardCount = that.shardCount;
         this.names = that.names;
         this.viruses = that.viruses;
+        this.superset = that.superset;
+        this.mapped = false;
+
+        buildIndex();
+    }
+
+    VirusesDatabase(int[] shinglesLength, long sketchScale, List<String> names, ShingleSet superset,
+                    IntBuffer virusSizes, IntBuffer postingOffsets, IntBuffer postingViruses) {
+        this.shinglesLength = shinglesLength;
+        this.sketchScale = Math.max(1, sketchScale);
+        this.sketchThreshold = Kmers.sketchThreshold(sketchScale);
+        this.shardId = 0;
+        this.shardCount = 1;
+        this.names = names;
+        this.viruses = List.of();
+        this.superset = superset;
+        this.mapped = true;
+        this.virusSizes = virusSizes;
+        this.postingOffsets = postingOffsets;
+        this.postingViruses = postingViruses;
 
-        superset = new HashSet<>();
-        viruses.values().forEach(superset::addAll);
+        computeLengthOffsets();
+    }
+
+    @Serial
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        if (mapped) {
+            throw new NotSerializableException("Memory-mapped database cannot be serialized");
+        }
+        out.defaultWriteObject();
     }
 
     @Serial
@@ -37,11 +111,42 @@ public class VirusesDatabase implements Serializable {
     }
 
     public void loadFromInputStream(InputStream inputStream) throws IOException {
-        Map<String, Set<String>> localViruses = new HashMap<>();
-        List<String> localNames = new ArrayList<>();
-        int virusCount = viruses.size();
-        ;
+        checkNotMapped();
+        Queue<CompletableFuture<VirusShingles>> pendingViruses = new ArrayDeque<>();
+        readViruses(inputStream, Runnable::run, 0, pendingViruses);
+        finishLoading(pendingViruses);
+    }
+
+    /**
+     * Loads FASTA files with shingles of each virus extracted by a separate task on the executor.
+     * Files are read one after another, but reading does not wait for the extraction, so viruses from all
+     * the files are processed concurrently. Viruses are added to the database only by the calling thread,
+     * in order of files and records, so ids of shingles do not depend on the scheduling.
+     */
+    public void loadFromFiles(List<Path> paths, Executor executor, int parallelism) throws IOException {
+        checkNotMapped();
+        Queue<CompletableFuture<VirusShingles>> pendingViruses = new ArrayDeque<>();
+        try {
+            for (Path path : paths) {
+                try (InputStream inputStream = Files.newInputStream(path)) {
+                    readViruses(inputStream, executor, Math.max(1, parallelism) * 2, pendingViruses);
+                }
+            }
+            finishLoading(pendingViruses);
+        } finally {
+            pendingViruses.forEach(pendingVirus -> pendingVirus.cancel(false));
+        }
+    }
+
+    private void checkNotMapped() {
+        if (mapped) {
+            throw new IllegalStateException("Memory-mapped database is read-only");
+        }
+    }
 
+    private void readViruses(InputStream inputStream, Executor executor, int maxPendingViruses,
+                             Queue<CompletableFuture<VirusShingles>> pendingViruses) throws IOException {
+        int virusCount = viruses.size() + pendingViruses.size();
         try (BufferedReader br = new BufferedReader(
                 new InputStreamReader(inputStream))) {
             String name = "";
@@ -50,14 +155,13 @@ public class VirusesDatabase implements Serializable {
                 String line = br.readLine();
                 if (line == null || line.startsWith(">")) {
                     if (!virus.isEmpty()) {
-                        Set<String> generator = new HashSet<>();
-                        for (int i = 0; i < virus.length() - shinglesLength[shinglesLength.length - 1]; ++i) {
-                            for (int shingleLength : shinglesLength) {
-                                generator.add(virus.substring(i, i + shingleLength));
-                            }
+                        String virusName = name;
+                        String genome = virus.toString();
+                        pendingViruses.add(CompletableFuture.supplyAsync(
+                                () -> new VirusShingles(virusName, extractShingles(genome)), executor));
+                        while (pendingViruses.size() > maxPendingViruses) {
+                            addVirus(pendingViruses.poll().join());
                         }
-                        localNames.add(name);
-                        localViruses.put(name, Collections.unmodifiableSet(generator));
 
                         virus.setLength(0);
                     }
@@ -75,11 +179,82 @@ public class VirusesDatabase implements Serializable {
                 }
             }
         }
+    }
+
+    private ShingleSet extractShingles(String genome) {
+        ShingleSet shingles = new ShingleSet(shinglesLength, genome.length());
+        new KmerScanner(shinglesLength).scan(genome, 0, genome.length(), (lengthIndex, kmer) -> {
+            long hash = Kmers.hash(kmer, 0, kmer.length);
+            if (Kmers.isInSketch(hash, sketchThreshold) && Kmers.shard(hash, shardCount) == shardId) {
+                shingles.add(lengthIndex, kmer);
+            }
+        });
+        return shingles;
+    }
+
+    private void addVirus(VirusShingles virusShingles) {
+        int[][] shingleIds = new int[shinglesLength.length][];
+        for (int lengthIndex = 0; lengthIndex < shinglesLength.length; ++lengthIndex) {
+            KmerSet kmers = virusShingles.shingles().getKmers(lengthIndex);
+            long[] kmer = new long[kmers.width()];
+            shingleIds[lengthIndex] = new int[kmers.size()];
+            for (int id = 0; id < kmers.size(); ++id) {
+                kmers.get(id, kmer);
+                shingleIds[lengthIndex][id] = superset.addAndGetIndex(lengthIndex, kmer);
+            }
+            Arrays.sort(shingleIds[lengthIndex]);
+        }
+        names.add(virusShingles.name());
+        viruses.add(shingleIds);
+    }
+
+    private void finishLoading(Queue<CompletableFuture<VirusShingles>> pendingViruses) {
+        while (!pendingViruses.isEmpty()) {
+            addVirus(pendingViruses.poll().join());
+        }
+        superset.trimToSize();
+        buildIndex();
+    }
+
+    private void computeLengthOffsets() {
+        lengthOffsets = new int[shinglesLength.length + 1];
+        for (int lengthIndex = 0; lengthIndex < shinglesLength.length; ++lengthIndex) {
+            lengthOffsets[lengthIndex + 1] = lengthOffsets[lengthIndex] + superset.getKmers(lengthIndex).size();
+        }
+    }
+
+    private void buildIndex() {
+        computeLengthOffsets();
+
+        int[] virusSizes = new int[viruses.size()];
+        int[] postingOffsets = new int[shinglesCount() + 1];
+        for (int virusId = 0; virusId < viruses.size(); ++virusId) {
+            int[][] virusShingles = viruses.get(virusId);
+            for (int lengthIndex = 0; lengthIndex < virusShingles.length; ++lengthIndex) {
+                virusSizes[virusId] += virusShingles[lengthIndex].length;
+                for (int localId : virusShingles[lengthIndex]) {
+                    ++postingOffsets[lengthOffsets[lengthIndex] + localId + 1];
+                }
+            }
+        }
+        for (int id = 0; id < shinglesCount(); ++id) {
+            postingOffsets[id + 1] += postingOffsets[id];
+        }
 
-        viruses.putAll(localViruses);
-        names.addAll(localNames);
-        localViruses.values().forEach(superset::addAll);
+        int[] postingViruses = new int[postingOffsets[shinglesCount()]];
+        int[] positions = Arrays.copyOf(postingOffsets, shinglesCount());
+        for (int virusId = 0; virusId < viruses.size(); ++virusId) {
+            int[][] virusShingles = viruses.get(virusId);
+            for (int lengthIndex = 0; lengthIndex < virusShingles.length; ++lengthIndex) {
+                for (int localId : virusShingles[lengthIndex]) {
+                    postingViruses[positions[lengthOffsets[lengthIndex] + localId]++] = virusId;
+                }
+            }
+        }
 
+        this.virusSizes = IntBuffer.wrap(virusSizes);
+        this.postingOffsets = IntBuffer.wrap(postingOffsets);
+        this.postingViruses = IntBuffer.wrap(postingViruses);
     }
 
     public int count() {
@@ -90,18 +265,180 @@ public class VirusesDatabase implements Serializable {
         return names.toArray(new String[0]);
     }
 
-    public boolean hasShingle(String shingle) {
-        return superset.contains(shingle);
+    public int[] getShinglesLength() {
+        return shinglesLength;
+    }
+
+    public long getSketchScale() {
+        return sketchScale;
     }
 
-    public Set<String> getShingles(String virusName) throws NoSuchElementException {
-        if (!names.contains(virusName)) {
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public int getShinglesCount(String virusName) throws NoSuchElementException {
+        int virusId = names.indexOf(virusName);
+        if (virusId < 0) {
             throw new NoSuchElementException("Not found: " + virusName);
         }
-        return Collections.unmodifiableSet(viruses.get(virusName));
+        return virusSizes.get(virusId);
+    }
+
+    public int shinglesCount() {
+        return lengthOffsets[shinglesLength.length];
+    }
+
+    public boolean hasShingle(int lengthIndex, long[] kmer) {
+        return getShingleId(lengthIndex, kmer) >= 0;
     }
 
-    public PriorityQueue<CrosscheckResult> crosscheck(Set<String> shingles) {
+    /**
+     * @return id of the shingle in range {@code [0, shinglesCount())}, or {@code -1} if no virus contains it
+     */
+    public int getShingleId(int lengthIndex, long[] kmer) {
+        return getShingleId(lengthIndex, kmer, 0);
+    }
+
+    public int getShingleId(int lengthIndex, long[] kmers, int offset) {
+        KmerSet kmerSet = superset.getKmers(lengthIndex);
+        long hash = Kmers.hash(kmers, offset, kmerSet.width());
+        if (!Kmers.isInSketch(hash, sketchThreshold)) {
+            return -1;
+        }
+        if (prefilters != null && !prefilters[lengthIndex].mightContain(hash)) {
+            return -1;
+        }
+        int localId = kmerSet.indexOf(kmers, offset, hash);
+        return localId < 0 ? -1 : lengthOffsets[lengthIndex] + localId;
+    }
+
+    /**
+     * @return shard that owns the shingle, or {@code -1} if the shingle is not in the sketch
+     */
+    public int getShard(int lengthIndex, long[] kmer) {
+        long hash = Kmers.hash(kmer, 0, kmer.length);
+        if (!Kmers.isInSketch(hash, sketchThreshold)) {
+            return -1;
+        }
+        return Kmers.shard(hash, shardCount);
+    }
+
+    /**
+     * @return hash of everything that determines ids of shingles and the results: K-mer lengths, sketch scale,
+     * names and sizes of viruses, K-mers in order of their ids and the inverted index
+     */
+    public long fingerprint() {
+        long hash = fingerprint(0, sketchScale);
+        for (int shingleLength : shinglesLength) {
+            hash = fingerprint(hash, shingleLength);
+        }
+        for (String name : names) {
+            hash = fingerprint(hash, name.hashCode());
+        }
+        for (IntBuffer buffer : List.of(virusSizes(), postingOffsets(), postingViruses())) {
+            while (buffer.hasRemaining()) {
+                hash = fingerprint(hash, buffer.get());
+            }
+        }
+        for (int lengthIndex = 0; lengthIndex < shinglesLength.length; ++lengthIndex) {
+            KmerSet kmers = superset.getKmers(lengthIndex);
+            LongBuffer keys = kmers.keys();
+            for (int i = 0; i < kmers.size() * kmers.width(); ++i) {
+                hash = fingerprint(hash, keys.get(i));
+            }
+        }
+        return hash;
+    }
+
+    private static long fingerprint(long hash, long value) {
+        return Kmers.mix(hash * 31 + value);
+    }
+
+    /**
+     * Builds Bloom filters of the shingles that reject most of the shingles absent in the database
+     * before the exact lookup. Filters are not part of the (serialized or mapped) database.
+     *
+     * @param bitsPerShingle size of the filters; {@code 0} removes the filters
+     * @return size of the filters in bytes
+     */
+    public long buildPrefilters(int bitsPerShingle) {
+        if (bitsPerShingle <= 0) {
+            prefilters = null;
+            return 0;
+        }
+        BloomFilter[] filters = new BloomFilter[shinglesLength.length];
+        long byteSize = 0;
+        for (int lengthIndex = 0; lengthIndex < shinglesLength.length; ++lengthIndex) {
+            KmerSet kmers = superset.getKmers(lengthIndex);
+            LongBuffer keys = kmers.keys();
+            filters[lengthIndex] = new BloomFilter(kmers.size(), bitsPerShingle);
+            for (int id = 0; id < kmers.size(); ++id) {
+                filters[lengthIndex].add(Kmers.hash(keys, id * kmers.width(), kmers.width()));
+            }
+            byteSize += filters[lengthIndex].byteSize();
+        }
+        prefilters = filters;
+        return byteSize;
+    }
+
+    /**
+     * @return sorted ids of the shingles of the virus
+     */
+    public int[] getShingles(String virusName) throws NoSuchElementException {
+        int virusId = names.indexOf(virusName);
+        if (virusId < 0) {
+            throw new NoSuchElementException("Not found: " + virusName);
+        }
+        if (mapped) {
+            // the mapped database has only the inverted index, so its postings are scanned once
+            IntStream.Builder shingleIds = IntStream.builder();
+            int postingEnd = postingOffsets.get(0);
+            for (int id = 0; id < shinglesCount(); ++id) {
+                int postingStart = postingEnd;
+                postingEnd = postingOffsets.get(id + 1);
+                for (int posting = postingStart; posting < postingEnd; ++posting) {
+                    if (postingViruses.get(posting) == virusId) {
+                        shingleIds.add(id);
+                        break;
+                    }
+                }
+            }
+            return shingleIds.build().toArray();
+        }
+        int[][] virusShingles = viruses.get(virusId);
+        return IntStream.range(0, virusShingles.length)
+                .flatMap(lengthIndex -> Arrays.stream(virusShingles[lengthIndex])
+                        .map(localId -> lengthOffsets[lengthIndex] + localId))
+                .toArray();
+    }
+
+    /**
+     * Counts, for every virus, how many of the given shingles it contains. Each shingle is looked up
+     * once in the inverted index, so the cost depends on the number of shingles, not on the number of viruses.
+     */
+    public int[] countCommonShingles(BitSet shingles) {
+        int[] counts = new int[names.size()];
+        for (int id = shingles.nextSetBit(0); id >= 0; id = shingles.nextSetBit(id + 1)) {
+            countCommonShingle(id, counts);
+        }
+        return counts;
+    }
+
+    /**
+     * Increments counts of the viruses that contain the shingle.
+     */
+    public void countCommonShingle(int shingleId, int[] counts) {
+        for (int posting = postingOffsets.get(shingleId); posting < postingOffsets.get(shingleId + 1); ++posting) {
+            ++counts[postingViruses.get(posting)];
+        }
+    }
+
+    public PriorityQueue<CrosscheckResult> crosscheck(BitSet shingles) {
+        return crosscheck(countCommonShingles(shingles));
+    }
+
+    public PriorityQueue<CrosscheckResult> crosscheck(int[] intersectionSizes) {
         Comparator<CrosscheckResult> crosscheckResultComparator
                 = (Comparator<CrosscheckResult> & Serializable) (v1, v2) -> {
             int value = Double.compare(v1.value(), v2.value());
@@ -111,19 +448,53 @@ public class VirusesDatabase implements Serializable {
             return -value;
         };
         PriorityQueue<CrosscheckResult> priorityQueue = new PriorityQueue<>(crosscheckResultComparator);
-        for (String name : names) {
-            Set<String> virusShingles = viruses.get(name);
-            double index = calculateIndex(shingles, virusShingles);
-            priorityQueue.add(new CrosscheckResult(name, index));
+        for (int virusId = 0; virusId < names.size(); ++virusId) {
+            double index = calculateIndex(intersectionSizes[virusId], virusSizes.get(virusId));
+            priorityQueue.add(new CrosscheckResult(names.get(virusId), index));
         }
         return priorityQueue;
     }
 
-    public static double calculateIndex(Set<String> shingles, Set<String> virusShingles) {
-        long intersectionSize = shingles.stream().filter(virusShingles::contains).count();
-        return (double) intersectionSize / virusShingles.size();
+    public int[] getVirusSizes() {
+        int[] sizes = new int[names.size()];
+        virusSizes().get(sizes);
+        return sizes;
+    }
+
+    /**
+     * Replaces sizes of viruses, e.g. by the sizes in the whole sharded database (sums over all shards).
+     */
+    public void setVirusSizes(int[] virusSizes) {
+        this.virusSizes = IntBuffer.wrap(virusSizes.clone());
+    }
+
+    List<String> names() {
+        return names;
+    }
+
+    ShingleSet superset() {
+        return superset;
+    }
+
+    IntBuffer virusSizes() {
+        return virusSizes.duplicate().clear();
+    }
+
+    IntBuffer postingOffsets() {
+        return postingOffsets.duplicate().clear();
+    }
+
+    IntBuffer postingViruses() {
+        return postingViruses.duplicate().clear();
+    }
+
+    public static double calculateIndex(long intersectionSize, long virusShinglesCount) {
+        return (double) intersectionSize / virusShinglesCount;
     }
 
     public record CrosscheckResult(String name, double value) implements Serializable {
     }
+
+    private record VirusShingles(String name, ShingleSet shingles) {
+    }
 }
@@ -0,0 +1,255 @@
+package pl.edu.icm.heap.kite;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Precompiled, versioned binary format of {@link VirusesDatabase}.
+ * <p>
+ * The file contains header (names of viruses and shingle lengths), sizes of viruses, hash tables of all shingles
+ * and the inverted index. All sections are little-endian and aligned to 8 bytes, so they are memory-mapped
+ * read-only and used as they are. All PCJ threads on a node share the same page cache copy of the database.
+ */
+public class VirusesDatabaseFile {
+    private static final byte[] MAGIC = "KITE-DB\n".getBytes(StandardCharsets.US_ASCII);
+    /**
+     * Version 2 adds the scale of FracMinHash sketch.
+     */
+    private static final int VERSION = 2;
+    private static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    private VirusesDatabaseFile() {
+    }
+
+    public static boolean isDatabaseFile(Path path) throws IOException {
+        if (!Files.isRegularFile(path) || Files.size(path) < MAGIC.length) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {
+            }
+            return Arrays.equals(magic.array(), MAGIC);
+        }
+    }
+
+    public static void write(VirusesDatabase database, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer writer = new Writer(channel);
+            writer.putBytes(MAGIC);
+            writer.putInt(VERSION);
+
+            int[] shinglesLength = database.getShinglesLength();
+            writer.putInt(shinglesLength.length);
+            for (int shingleLength : shinglesLength) {
+                writer.putInt(shingleLength);
+            }
+            writer.putLong(database.getSketchScale());
+
+            List<String> names = database.names();
+            writer.putInt(names.size());
+            for (String name : names) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                writer.putInt(bytes.length);
+                writer.putBytes(bytes);
+            }
+            writer.putInts(database.virusSizes());
+
+            ShingleSet superset = database.superset();
+            for (int lengthIndex = 0; lengthIndex < shinglesLength.length; ++lengthIndex) {
+                KmerSet kmers = superset.getKmers(lengthIndex);
+                writer.putInt(kmers.size());
+                writer.putLongs(kmers.keys());
+                writer.putInts(kmers.slots());
+            }
+
+            writer.putInts(database.postingOffsets());
+            writer.putInts(database.postingViruses());
+            writer.flush();
+        }
+    }
+
+    public static VirusesDatabase map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Reader reader = new Reader(channel);
+            byte[] magic = reader.getBytes(MAGIC.length);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a KITE database file: " + path);
+            }
+            int version = reader.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported KITE database file version " + version + ": " + path);
+            }
+
+            int[] shinglesLength = new int[reader.getInt()];
+            for (int i = 0; i < shinglesLength.length; ++i) {
+                shinglesLength[i] = reader.getInt();
+            }
+            long sketchScale = version >= 2 ? reader.getLong() : 1;
+
+            int virusCount = reader.getInt();
+            List<String> names = new ArrayList<>(virusCount);
+            for (int i = 0; i < virusCount; ++i) {
+                names.add(new String(reader.getBytes(reader.getInt()), StandardCharsets.UTF_8));
+            }
+            IntBuffer virusSizes = reader.mapInts();
+
+            KmerSet[] kmers = new KmerSet[shinglesLength.length];
+            for (int lengthIndex = 0; lengthIndex < shinglesLength.length; ++lengthIndex) {
+                int size = reader.getInt();
+                LongBuffer keys = reader.mapLongs();
+                IntBuffer slots = reader.mapInts();
+                kmers[lengthIndex] = new KmerSet(Kmers.wordCount(shinglesLength[lengthIndex]), size, keys, slots);
+            }
+
+            IntBuffer postingOffsets = reader.mapInts();
+            IntBuffer postingViruses = reader.mapInts();
+
+            return new VirusesDatabase(shinglesLength, sketchScale, List.copyOf(names),
+                    new ShingleSet(shinglesLength, kmers), virusSizes, postingOffsets, postingViruses);
+        }
+    }
+
+    private static class Writer {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private long position;
+
+        Writer(FileChannel channel) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocateDirect(1024 * 1024).order(BYTE_ORDER);
+        }
+
+        void putInt(int value) throws IOException {
+            ensureRemaining(Integer.BYTES);
+            buffer.putInt(value);
+            position += Integer.BYTES;
+        }
+
+        void putLong(long value) throws IOException {
+            ensureRemaining(Long.BYTES);
+            buffer.putLong(value);
+            position += Long.BYTES;
+        }
+
+        void putByte(byte value) throws IOException {
+            ensureRemaining(Byte.BYTES);
+            buffer.put(value);
+            position += Byte.BYTES;
+        }
+
+        void putBytes(byte[] bytes) throws IOException {
+            for (byte b : bytes) {
+                putByte(b);
+            }
+        }
+
+        /* padding to 8 bytes, length of the array and its values */
+        void putInts(IntBuffer values) throws IOException {
+            align();
+            putLong(values.remaining());
+            while (values.hasRemaining()) {
+                putInt(values.get());
+            }
+        }
+
+        void putLongs(LongBuffer values) throws IOException {
+            align();
+            putLong(values.remaining());
+            while (values.hasRemaining()) {
+                putLong(values.get());
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private void align() throws IOException {
+            while (position % Long.BYTES != 0) {
+                putByte((byte) 0);
+            }
+        }
+
+        private void ensureRemaining(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+    }
+
+    private static class Reader {
+        private final FileChannel channel;
+        private long position;
+
+        Reader(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        int getInt() throws IOException {
+            return read(Integer.BYTES).getInt();
+        }
+
+        long getLong() throws IOException {
+            return read(Long.BYTES).getLong();
+        }
+
+        byte[] getBytes(int length) throws IOException {
+            return read(length).array();
+        }
+
+        IntBuffer mapInts() throws IOException {
+            align();
+            long length = getLong();
+            IntBuffer values = map(length * Integer.BYTES).asIntBuffer();
+            position += length * Integer.BYTES;
+            return values;
+        }
+
+        LongBuffer mapLongs() throws IOException {
+            align();
+            long length = getLong();
+            LongBuffer values = map(length * Long.BYTES).asLongBuffer();
+            position += length * Long.BYTES;
+            return values;
+        }
+
+        private ByteBuffer map(long size) throws IOException {
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Database section too large to be memory-mapped: " + size + " bytes");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(BYTE_ORDER);
+        }
+
+        private ByteBuffer read(int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length).order(BYTE_ORDER);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of KITE database file");
+                }
+            }
+            position += length;
+            return buffer.flip();
+        }
+
+        private void align() {
+            position = (position + Long.BYTES - 1) / Long.BYTES * Long.BYTES;
+        }
+    }
+}